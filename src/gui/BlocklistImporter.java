@@ -0,0 +1,53 @@
+package gui;
+
+import proxy.utils.ProxyStorage;
+
+import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
+
+public class BlocklistImporter extends SwingWorker<Integer, Object> {
+    private final File selectedFile;
+    private final ProxyStorage storage;
+    private final JFrame mainWindow;
+
+    public BlocklistImporter(File selectedFile, ProxyStorage storage, JFrame mainWindow) {
+        this.selectedFile = selectedFile;
+        this.storage = storage;
+        this.mainWindow = mainWindow;
+    }
+
+    @Override
+    protected Integer doInBackground() {
+        try {
+            return storage.importBlocklist(selectedFile);
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    @Override
+    protected void done() {
+        int result;
+        try {
+            result = get();
+            if (result >= 0) {
+                JOptionPane.showMessageDialog(
+                        mainWindow,
+                        result + " domains imported",
+                        "Confirmation",
+                        JOptionPane.INFORMATION_MESSAGE
+                );
+            } else {
+                throw new Exception();
+            }
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(
+                    mainWindow,
+                    "Blocklist import failed!",
+                    "IO Error",
+                    JOptionPane.ERROR_MESSAGE
+            );
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package gui;
 
 import proxy.HTTPProxy.PlainProxy;
+import proxy.HTTPProxy.Revalidator;
+import proxy.HTTPProxy.UpstreamPool;
 import proxy.HTTPSProxy.SSLProxy;
+import proxy.utils.DnsCache;
 import proxy.utils.Logger;
 import proxy.utils.ProxyStorage;
 
@@ -13,7 +16,6 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -86,22 +88,11 @@ public class ProxyGui {
         JButton tableButton = new JButton("Unblock Selected Hosts");
         tableButton.addActionListener(e -> {
             int[] selectedRows = blockedTable.getSelectedRows();
-            InetAddress[] addrArray = new InetAddress[selectedRows.length];
-            int index = 0;
-            for (int row: selectedRows) {
-                try {
-                    addrArray[index] = InetAddress.getByName(blockedTable.getModel().getValueAt(row, 0).toString().trim());
-                } catch (UnknownHostException ex) {
-                    clientLogs.addVerboseLog("Unknown host log at row " + row);
-                    continue;
-                }
-                index++;
-            }
-            try {
-                storage.unblockHosts(addrArray);
-            } catch (IOException ex) {
-                clientLogs.addVerboseLog("Unblocking the selected hosts failed!");
+            String[] hostArray = new String[selectedRows.length];
+            for (int i = 0; i < selectedRows.length; i++) {
+                hostArray[i] = blockedTable.getModel().getValueAt(selectedRows[i], 0).toString().trim();
             }
+            storage.unblockHosts(hostArray);
             refreshBlockedList();
         });
         buttonPanel.add(tableButton, BorderLayout.CENTER);
@@ -246,12 +237,44 @@ public class ProxyGui {
             } while (true);
         });
 
+        JMenuItem importFilter = new JMenuItem("Import blocklist");
+        importFilter.addActionListener(e -> {
+            JFileChooser fileChooser = new JFileChooser(FileSystemView.getFileSystemView().getHomeDirectory());
+            int result = fileChooser.showOpenDialog(mainWindow);
+            if (result == JFileChooser.APPROVE_OPTION) { // User selected a valid file
+                BlocklistImporter importer = new BlocklistImporter(fileChooser.getSelectedFile(), storage, mainWindow);
+                importer.execute();
+            }
+        });
+
+        JMenuItem clearImported = new JMenuItem("Clear imported blocklist");
+        clearImported.addActionListener(e -> {
+            try {
+                storage.clearImportedBlocklist();
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(
+                        mainWindow,
+                        "IO error during writing to disk",
+                        "IO Error",
+                        JOptionPane.ERROR_MESSAGE
+                );
+            }
+        });
+
         JMenuItem displayFilter = new JMenuItem("Display current filtered host");
         displayFilter.addActionListener(e -> {
             refreshBlockedList();
             blockedWindow.setVisible(!blockedWindow.isVisible());
         });
 
+        JMenuItem statistics = new JMenuItem("Statistics");
+        statistics.addActionListener(e -> JOptionPane.showMessageDialog(
+                mainWindow,
+                createStatistics(),
+                "Proxy Statistics",
+                JOptionPane.INFORMATION_MESSAGE
+        ));
+
         JMenuItem exitApp = new JMenuItem("Exit");
         exitApp.addActionListener(e -> exitProxy());
 
@@ -259,7 +282,10 @@ public class ProxyGui {
         fileMenu.add(stopButton);
         fileMenu.add(createReport);
         fileMenu.add(filterHost);
+        fileMenu.add(importFilter);
+        fileMenu.add(clearImported);
         fileMenu.add(displayFilter);
+        fileMenu.add(statistics);
         fileMenu.add(exitApp);
 
         JMenuItem aboutMenuItem = new JMenuItem("About");
@@ -331,11 +357,38 @@ public class ProxyGui {
         );
         if (selection == 0) { // User selected YES
             stopProxy(true);
+            try { // Save the resolved hosts so the next start is warm
+                DnsCache.getCache().saveSnapshot();
+            } catch (IOException ex) {
+                clientLogs.addVerboseLog("Saving the DNS cache failed");
+            }
+            try { // Make sure the queued index changes reach the disk
+                storage.flushIndexes();
+            } catch (InterruptedException ignore) {
+                // Exiting anyway
+            }
             logWorker.cancel(true);
             System.exit(0);
         }
     }
 
+    // Collect the counters of the proxy components, one line per component
+    private String createStatistics() {
+        String stats = UpstreamPool.getPool().getStats();
+        stats += "\nImported blocklist: " + storage.getImportedBlocklistSize() + " domains";
+        stats += "\n" + storage.getCacheStats();
+        stats += "\n" + storage.getAdmissionStats();
+        stats += "\n" + storage.getWriteBehindStats();
+        stats += "\n" + storage.getHotObjectStats();
+        stats += "\n" + Revalidator.getRevalidator().getStats();
+        try {
+            stats += "\n" + DnsCache.getCache().getStats();
+        } catch (IOException ignore) {
+            // DNS cache could not be loaded, nothing to report
+        }
+        return stats;
+    }
+
     // Not the most efficient thing but works fine for this project
     private void refreshBlockedList() {
         blockedTableModel.setRowCount(0);
@@ -2,18 +2,47 @@ package proxy;
 
 import gui.ProxyAlreadyClosedException;
 import proxy.utils.Logger;
+import proxy.utils.VirtualThreads;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public abstract class AbstractProxyListener implements Runnable {
     protected ServerSocket serverListener;
     protected final int listenPort;
     protected boolean serverOn = false;
     protected Logger logger = Logger.getLogger();
+    protected volatile ExecutionMode executionMode = ExecutionMode.fromProperty();
 
     protected static final int SERVER_THREADS = 150;
 
+    /**
+     * How the listener runs its connection handlers.
+     */
+    public enum ExecutionMode {
+        // At most SERVER_THREADS handlers run at the same time, the rest wait in the pool queue
+        FIXED_POOL,
+        // Every handler gets its own virtual thread (platform thread on JDKs without virtual threads)
+        VIRTUAL_THREADS;
+
+        // Mode can be selected with -Dproxy.executionMode=VIRTUAL_THREADS
+        private static ExecutionMode fromProperty() {
+            String mode = System.getProperty("proxy.executionMode");
+            if (mode != null) {
+                try {
+                    return valueOf(mode.trim().toUpperCase());
+                } catch (IllegalArgumentException ignore) {
+                    // Unknown mode use the default one
+                }
+            }
+            return FIXED_POOL;
+        }
+    }
+
     public AbstractProxyListener(int port) throws IOException {
         listenPort = port;
         initSock();
@@ -21,7 +50,15 @@ public abstract class AbstractProxyListener implements Runnable {
 
     public void initSock() throws IOException {
         if (serverListener == null) {
-            serverListener = new ServerSocket(listenPort);
+            // Open through a channel so the accepted sockets can also be used with selectors
+            ServerSocketChannel listenChannel = ServerSocketChannel.open();
+            try {
+                listenChannel.bind(new InetSocketAddress(listenPort));
+            } catch (IOException ex) {
+                listenChannel.close();
+                throw ex;
+            }
+            serverListener = listenChannel.socket();
             serverOn = true;
         }
     }
@@ -34,4 +71,32 @@ public abstract class AbstractProxyListener implements Runnable {
         serverListener.close();
         serverListener = null;
     }
+
+    /**
+     * Changes the execution mode, takes effect the next time the listener is started.
+     *
+     * @param   mode    the new execution mode
+     */
+    public void setExecutionMode(ExecutionMode mode) {
+        executionMode = mode;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Creates the executor that runs the connection handlers for the selected execution mode.
+     *
+     * @return  the executor for the handlers
+     */
+    protected ExecutorService createExecutor() {
+        if (executionMode == ExecutionMode.VIRTUAL_THREADS) {
+            if (!VirtualThreads.isSupported()) {
+                logger.addVerboseLog("Virtual threads are not supported, using a thread per connection");
+            }
+            return VirtualThreads.newThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(SERVER_THREADS);
+    }
 }
@@ -0,0 +1,10 @@
+package proxy.HTTPProxy;
+
+import java.io.IOException;
+
+// A body that ended early or could not be framed, the connections it was relayed on cannot carry another message
+public class BrokenBodyException extends IOException {
+    public BrokenBodyException(String msg, Throwable ex) {
+        super(msg, ex);
+    }
+}
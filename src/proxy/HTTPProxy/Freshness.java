@@ -0,0 +1,371 @@
+package proxy.HTTPProxy;
+
+import proxy.utils.CacheEntry;
+import proxy.utils.CacheKey;
+import proxy.utils.HeaderName;
+import proxy.utils.MessageHead;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.List;
+
+/**
+ * HTTP freshness rules of a shared cache (RFC 9111 and the stale extensions of RFC 5861), decides what is stored
+ * and how long it is served without asking the origin.
+ */
+final class Freshness {
+    // Heuristic lifetime is 10% of the time since the last modification, capped to one day like common caches do
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000; // ms
+    // Stale windows for responses that do not set their own, in seconds
+    private static final long STALE_WHILE_REVALIDATE = Long.getLong("proxy.cache.staleWhileRevalidate", 60) * 1000;
+    private static final long STALE_IF_ERROR = Long.getLong("proxy.cache.staleIfError", 3600) * 1000;
+
+    private Freshness() {
+    }
+
+    /**
+     * Replaces the validators of a request with the ones of a cached entry, used to revalidate the entry.
+     *
+     * @param   headers the request headers
+     * @param   cached  the entry to revalidate
+     */
+    static void putValidators(MessageHead headers, CacheEntry cached) {
+        // Replaced in place, the rest of the request is written out as it was received
+        if (cached.getDate() != null) {
+            headers.set(HeaderName.IF_MODIFIED_SINCE, cached.getDate());
+        } else {
+            headers.remove(HeaderName.IF_MODIFIED_SINCE);
+        }
+        if (cached.getETag() != null) {
+            headers.set(HeaderName.IF_NONE_MATCH, cached.getETag());
+        } else {
+            headers.remove(HeaderName.IF_NONE_MATCH);
+        }
+    }
+
+    /**
+     * @param   headers the request headers
+     * @return  true if the client sent validators of its own copy
+     */
+    static boolean hasValidators(MessageHead headers) {
+        return headers.getCombined(HeaderName.IF_NONE_MATCH) != null || headers.getHeader(HeaderName.IF_MODIFIED_SINCE) != null;
+    }
+
+    /**
+     * Evaluates the validators of a client against a cached entry (RFC 9110 section 13.2.2). If-None-Match uses
+     * the weak comparison and takes precedence over If-Modified-Since.
+     *
+     * @param   headers the request headers
+     * @param   cached  the cached entry
+     * @return  true if the copy of the client is the cached one and a 304 answers the request
+     */
+    static boolean validatorsMatch(MessageHead headers, CacheEntry cached) {
+        String ifNoneMatch = headers.getCombined(HeaderName.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            if (ifNoneMatch.trim().equals("*")) {
+                return true;
+            }
+            if (cached.getETag() == null) {
+                return false;
+            }
+            String etag = weakTag(cached.getETag());
+            for (String tag : ifNoneMatch.split(",")) {
+                if (weakTag(tag).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long since = parseDate(headers.getHeader(HeaderName.IF_MODIFIED_SINCE));
+        long lastModified = parseDate(cached.getDate());
+        return since >= 0 && lastModified >= 0 && lastModified <= since;
+    }
+
+    private static String weakTag(String tag) {
+        tag = tag.trim();
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * @param   cacheControl    the Cache-Control header value, may be null
+     * @param   name            the directive name
+     * @return  the value of the directive, an empty string if it has no value, null if it is not present
+     */
+    static String directive(String cacheControl, String name) {
+        if (cacheControl == null) {
+            return null;
+        }
+        for (String part : cacheControl.split(",")) {
+            String directive = part.trim();
+            int equals = directive.indexOf('=');
+            String directiveName = equals < 0 ? directive : directive.substring(0, equals).trim();
+            if (directiveName.equalsIgnoreCase(name)) {
+                return equals < 0 ? "" : directive.substring(equals + 1).trim().replace("\"", "");
+            }
+        }
+        return null;
+    }
+
+    // Delta seconds in ms, -1 if missing or invalid
+    private static long seconds(String cacheControl, String name) {
+        String value = directive(cacheControl, name);
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value)) * 1000;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param   value   an HTTP date, may be null
+     * @return  the date in ms since the epoch, -1 if it cannot be parsed
+     */
+    static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param   headers the response headers
+     * @return  the declared body length, -1 if it is missing or invalid
+     */
+    static long contentLength(MessageHead headers) {
+        List<String> values = headers.getHeaders(HeaderName.CONTENT_LENGTH);
+        long length = -1;
+        for (String value : values) {
+            long declared;
+            try {
+                declared = Long.parseLong(value.trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+            // Repeated lines have to agree, otherwise the end of the body is ambiguous
+            if (declared < 0 || (length >= 0 && declared != length)) {
+                return -1;
+            }
+            length = declared;
+        }
+        return length;
+    }
+
+    /**
+     * @param   status  the response status code
+     * @param   request the request headers
+     * @param   headers the response headers
+     * @return  true if a shared cache may store the response and it can be revalidated or has a lifetime, responses
+     *          varying on headers outside the cache key are not stored
+     */
+    static boolean isStorable(int status, MessageHead request, MessageHead headers) {
+        if (status != 200 || !isSharedWith(request, headers)) {
+            return false;
+        }
+        String cacheControl = headers.getCombined(HeaderName.CACHE_CONTROL);
+        if (directive(cacheControl, "no-store") != null || directive(cacheControl, "private") != null
+                || !CacheKey.coversVary(headers.getCombined(HeaderName.VARY))) {
+            return false;
+        }
+        return headers.getHeader(HeaderName.LAST_MODIFIED) != null || seconds(cacheControl, "s-maxage") >= 0
+                || seconds(cacheControl, "max-age") >= 0 || headers.getHeader(HeaderName.EXPIRES) != null;
+    }
+
+    /**
+     * The credentials are not part of the cache key, a response to a request with them is only shared if the origin
+     * says so (RFC 9111 section 3.5).
+     *
+     * @param   request the request headers
+     * @param   headers the response headers
+     * @return  true if a shared cache may answer the request with the response
+     */
+    static boolean isSharedWith(MessageHead request, MessageHead headers) {
+        if (request.getHeader(HeaderName.AUTHORIZATION) == null) {
+            return true;
+        }
+        String cacheControl = headers.getCombined(HeaderName.CACHE_CONTROL);
+        return directive(cacheControl, "public") != null || directive(cacheControl, "s-maxage") != null
+                || directive(cacheControl, "must-revalidate") != null;
+    }
+
+    /**
+     * @param   headers         the response headers
+     * @param   responseTime    the time the response was received
+     * @return  how long the response stays fresh from its generation in ms, 0 if it must always be revalidated
+     */
+    static long lifetime(MessageHead headers, long responseTime) {
+        String cacheControl = headers.getCombined(HeaderName.CACHE_CONTROL);
+        if (directive(cacheControl, "no-cache") != null) {
+            return 0;
+        }
+        long lifetime = seconds(cacheControl, "s-maxage");
+        if (lifetime < 0) {
+            lifetime = seconds(cacheControl, "max-age");
+        }
+        if (lifetime >= 0) {
+            return lifetime;
+        }
+
+        long date = parseDate(headers.getHeader(HeaderName.DATE));
+        if (date < 0) {
+            date = responseTime;
+        }
+        String expires = headers.getHeader(HeaderName.EXPIRES);
+        if (expires != null) {
+            // An invalid Expires means already expired
+            return Math.max(0, parseDate(expires) - date);
+        }
+
+        long lastModified = parseDate(headers.getHeader(HeaderName.LAST_MODIFIED));
+        if (lastModified >= 0 && lastModified < date) {
+            return Math.min((date - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+        }
+        return 0;
+    }
+
+    /**
+     * @param   headers         the response headers
+     * @param   responseTime    the time the response was received
+     * @return  how long the response may be served without the origin
+     */
+    static CacheEntry.Validity validity(MessageHead headers, long responseTime) {
+        long birth = responseTime - initialAge(headers, responseTime);
+        long lifetime = lifetime(headers, responseTime);
+        String cacheControl = headers.getCombined(HeaderName.CACHE_CONTROL);
+        // These require a shared cache to revalidate once stale, s-maxage implies proxy-revalidate
+        if (directive(cacheControl, "must-revalidate") != null || directive(cacheControl, "proxy-revalidate") != null
+                || directive(cacheControl, "s-maxage") != null || directive(cacheControl, "no-cache") != null) {
+            return new CacheEntry.Validity(birth, lifetime, 0, 0, true);
+        }
+        long staleWhileRevalidate = seconds(cacheControl, "stale-while-revalidate");
+        long staleIfError = seconds(cacheControl, "stale-if-error");
+        return new CacheEntry.Validity(birth, lifetime,
+                staleWhileRevalidate < 0 ? STALE_WHILE_REVALIDATE : staleWhileRevalidate,
+                staleIfError < 0 ? STALE_IF_ERROR : staleIfError, false);
+    }
+
+    /**
+     * @param   headers         the response headers
+     * @param   storedHeader    the status line and headers as they are stored
+     * @param   responseTime    the time the response was received
+     * @return  the cache index entry describing the response
+     */
+    static CacheEntry describe(MessageHead headers, byte[] storedHeader, long responseTime) {
+        return new CacheEntry(headers.getHeader(HeaderName.LAST_MODIFIED), headers.getHeader(HeaderName.ETAG), storedHeader,
+                validity(headers, responseTime));
+    }
+
+    /**
+     * @param   confirmation    the headers of the 304 response
+     * @param   cached          the confirmed entry
+     * @param   responseTime    the time the 304 response was received
+     * @return  the new validity of the confirmed entry
+     */
+    static CacheEntry.Validity confirmedValidity(MessageHead confirmation, CacheEntry cached,
+                                                 long responseTime) {
+        if (hasLifetime(confirmation)) {
+            return validity(confirmation, responseTime);
+        }
+        // Keep the windows of the stored response, the heuristic lifetime is not recomputed
+        CacheEntry.Validity stored = cached.getValidity();
+        return new CacheEntry.Validity(responseTime - initialAge(confirmation, responseTime), stored.getLifetime(),
+                stored.getStaleWhileRevalidate(), stored.getStaleIfError(), stored.isMustRevalidate());
+    }
+
+    /**
+     * @param   headers the response headers
+     * @return  true if the response changes the freshness of a stored response it confirms
+     */
+    static boolean hasLifetime(MessageHead headers) {
+        return headers.getCombined(HeaderName.CACHE_CONTROL) != null || headers.getHeader(HeaderName.EXPIRES) != null;
+    }
+
+    /**
+     * @param   headers         the response headers
+     * @param   responseTime    the time the response was received
+     * @return  the age of the response when it was received in ms
+     */
+    static long initialAge(MessageHead headers, long responseTime) {
+        long apparentAge = 0;
+        long date = parseDate(headers.getHeader(HeaderName.DATE));
+        if (date >= 0) {
+            apparentAge = Math.max(0, responseTime - date);
+        }
+        long ageValue = 0;
+        String age = headers.getHeader(HeaderName.AGE);
+        if (age != null) {
+            try {
+                ageValue = Math.max(0, Long.parseLong(age.trim())) * 1000;
+            } catch (NumberFormatException ignore) {
+                // Invalid Age headers are ignored
+            }
+        }
+        return Math.max(apparentAge, ageValue);
+    }
+
+    /**
+     * @param   headers the request headers
+     * @return  true if the client does not accept a stored response without revalidation
+     */
+    static boolean requiresRevalidation(MessageHead headers) {
+        String cacheControl = headers.getCombined(HeaderName.CACHE_CONTROL);
+        String pragma = headers.getCombined(HeaderName.PRAGMA);
+        return directive(cacheControl, "no-cache") != null || seconds(cacheControl, "max-age") == 0
+                || (cacheControl == null && pragma != null && pragma.toLowerCase(Locale.ROOT).contains("no-cache"));
+    }
+
+    /**
+     * @param   headers the request headers
+     * @param   cached  the cached entry
+     * @return  true if the age and the remaining lifetime of the entry satisfy the max-age and min-fresh directives
+     *          of the client (RFC 9111 section 5.2.1)
+     */
+    static boolean satisfiesRequest(MessageHead headers, CacheEntry cached) {
+        String cacheControl = headers.getCombined(HeaderName.CACHE_CONTROL);
+        if (cacheControl == null) {
+            return true;
+        }
+        long age = cached.getAge();
+        long maxAge = seconds(cacheControl, "max-age");
+        if (maxAge >= 0 && age > maxAge) {
+            return false;
+        }
+        long minFresh = seconds(cacheControl, "min-fresh");
+        return minFresh < 0 || cached.getValidity().getLifetime() - age >= minFresh;
+    }
+
+    /**
+     * @param   headers the request headers
+     * @param   cached  the cached entry
+     * @return  true if the client accepts the stale entry with its max-stale directive, responses that must be
+     *          revalidated once stale are never accepted
+     */
+    static boolean acceptsStale(MessageHead headers, CacheEntry cached) {
+        String cacheControl = headers.getCombined(HeaderName.CACHE_CONTROL);
+        String maxStale = directive(cacheControl, "max-stale");
+        if (maxStale == null || cached.getValidity().isMustRevalidate()) {
+            return false;
+        }
+        long staleness = cached.getAge() - cached.getValidity().getLifetime();
+        return maxStale.isEmpty() || staleness <= seconds(cacheControl, "max-stale");
+    }
+
+    /**
+     * @param   responseHeader  the status line and headers of a response
+     * @return  the response header without Age lines as it is stored, the cache adds its own when serving it
+     */
+    static byte[] withoutAge(MessageHead responseHeader) {
+        MessageHead stored = responseHeader.copy();
+        stored.remove(HeaderName.AGE);
+        return stored.toBytes();
+    }
+}
@@ -1,126 +1,188 @@
 package proxy.HTTPProxy;
 
 import proxy.AbstractProxyHandler;
+import proxy.utils.CacheEntry;
+import proxy.utils.CacheFileHandles;
+import proxy.utils.CacheKey;
+import proxy.utils.CacheWriteBehind;
+import proxy.utils.HeaderName;
+import proxy.utils.MalformedMessageException;
+import proxy.utils.MessageHead;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.Locale;
+import java.util.zip.CRC32;
 
 @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
 public final class HTTPHandler extends AbstractProxyHandler {
     private boolean keepConnection = true;
     private int responseCode = -1;
 
-    private int tempData = -2;
     private static final int BUFFER_SIZE = 8192; // Apache header limit is 8KB, so I also use this limit as well
     private static final int SERVER_RETRY = 4;
+    // Longest silence of the server inside a response body
+    private static final int BODY_TIMEOUT = 30_000; // ms
+    // How long an Expect: 100-continue request waits for the server before the body is sent anyway
+    private static final int CONTINUE_TIMEOUT = 1_000; // ms
+    private static final String CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n";
     private final byte[] sharedBuffer = new byte[BUFFER_SIZE];
-    private int bufferIndex = 0;
+    // Headers a 304 answered from the cache repeats from the stored response
+    private static final HeaderName[] NOT_MODIFIED_HEADERS = {HeaderName.DATE, HeaderName.ETAG,
+            HeaderName.LAST_MODIFIED, HeaderName.CACHE_CONTROL, HeaderName.EXPIRES, HeaderName.VARY,
+            HeaderName.CONTENT_LOCATION};
+
+    // Origin connection borrowed from the pool, it is returned only if its last response finished cleanly
+    private final UpstreamPool upstreamPool = UpstreamPool.getPool();
+    private UpstreamConnection upstream;
+    private boolean upstreamReusable = false;
+
+    // Pipelined requests read before their turn, -Dproxy.pipelineDepth=0 reads each one after the previous response
+    private static final int PIPELINE_DEPTH = Math.max(0, Integer.getInteger("proxy.pipelineDepth", 8));
+    // Responses are written in the order of the requests (RFC 9112 section 9.3.2)
+    private final ArrayDeque<PipelinedRequest> pipeline = new ArrayDeque<>();
+    // The request being answered if it was sent to the origin before its turn, null otherwise
+    private PipelinedRequest sentAhead;
 
     // Throw IOException to upper level since this Runnable should not execute
     public HTTPHandler(Socket clientSocket) throws IOException {
         super(clientSocket);
+        // Every header is written in one piece, Nagle would only hold back the last segment of each response
+        clientSocket.setTcpNoDelay(true);
     }
 
     @Override
     public void run() {
         URL url = null;
+        PipelinedRequest queued = null;
         try {
             do {
-                String header = null;
-                try {
-                    header = readHeaderFromClient();
-                } catch (ArrayIndexOutOfBoundsException ex) { // Invalid header size return 414
-                    error414();
-                    return;
-                } catch (SocketTimeoutException ignore) {
-                } catch (SocketException ex) { // Connection closed by peer
-                    return;
-                } catch (IOException ex) {
-                    error500();
-                    return;
+                if (queued != null) {
+                    // It failed before its response was read
+                    queued.discard();
                 }
-
-                if (header == null) {
-                    // Client did not send any headers drop the connection
-                    return;
-                }
-
-                int methodFinIndex = header.indexOf(' ');
-                int pathFinIndex = header.indexOf(' ', methodFinIndex + 1);
-
-                String method = header.substring(0, methodFinIndex);
-                String fullPath = header.substring(methodFinIndex + 1, pathFinIndex);
-
-                try {
-                    url = new URL(fullPath);
-                } catch (MalformedURLException e) {
-                    // Maybe the hostname exists inside the header?
-                    int secondLine = header.indexOf('\r') + 2;
-                    MimeHeader mh = new MimeHeader(header.substring(secondLine));
-                    String host = mh.get("Host");
-                    if (!host.startsWith("http://")) {
-                        host = "http://" + host + fullPath;
+                sentAhead = null;
+                MessageHead head = null;
+                queued = pipeline.poll();
+                if (queued != null) {
+                    head = queued.getRequest();
+                    if (head == null) {
+                        // Its head was invalid, the responses before it are written
+                        error400();
+                        return;
                     }
+                } else {
                     try {
-                        url = new URL(host);
-                    } catch (MalformedURLException ex) {
+                        head = readHeaderFromClient();
+                    } catch (ArrayIndexOutOfBoundsException ex) { // Invalid header size return 414
+                        error414();
+                        return;
+                    } catch (MalformedMessageException ex) {
                         error400();
                         return;
+                    } catch (SocketTimeoutException ignore) {
+                    } catch (SocketException ex) { // Connection closed by peer
+                        return;
+                    } catch (IOException ex) {
+                        error500();
+                        return;
                     }
                 }
 
-                InetAddress serverIP;
-                try {
-                    serverIP = InetAddress.getByName(url.getHost());
-                } catch (UnknownHostException e) {
-                    // Drop the connection host not found
+                if (head == null) {
+                    // Client did not send any headers drop the connection
+                    return;
+                }
+
+                String method = head.getMethod();
+                url = requestUrl(head);
+                if (url == null) {
+                    error400();
                     return;
                 }
 
-                // Check if host is blocked
-                if (storage.isBlocked(serverIP)) {
+                // Check if host is blocked before spending any time on resolving it
+                if (storage.isBlocked(url.getHost())) {
                     clientLogs.addBlockedLog(clientSocket.getInetAddress(), url.getHost());
                     error401();
                     return;
                 }
 
+                InetAddress serverIP;
+                try {
+                    serverIP = resolver.resolve(url.getHost());
+                } catch (UnknownHostException e) {
+                    if (sendStaleOnError(head, url)) {
+                        continue;
+                    }
+                    // Drop the connection host not found
+                    return;
+                }
+
                 try {
                     // Connect to the server
-                    if (serverSocket == null) {
-                        serverSocket = new Socket(serverIP, 80);
-                        serverSocket.setSoTimeout(SERVER_TIMEOUT);
-                        serverIn = new DataInputStream(serverSocket.getInputStream());
-                        serverOut = new DataOutputStream(serverSocket.getOutputStream());
-                    } else if (serverSocket.getInetAddress() != serverIP) {
-                        // Client using the same port to connect other hosts
-                        serverSocket.close();
-                        serverSocket = new Socket(serverIP, 80);
-                        serverSocket.setSoTimeout(SERVER_TIMEOUT);
-                        serverIn = new DataInputStream(serverSocket.getInputStream());
-                        serverOut = new DataOutputStream(serverSocket.getOutputStream());
+                    UpstreamConnection ahead = queued != null ? queued.takeUpstream() : null;
+                    if (ahead != null) {
+                        // Sent before its turn, the response is waiting on its own connection
+                        releaseUpstream();
+                        useUpstream(ahead);
+                        sentAhead = queued;
+                    } else if (upstream == null || !upstream.getAddress().equals(serverIP)) {
+                        // Client using the same port to connect other hosts, park the previous connection
+                        releaseUpstream();
+                        try {
+                            borrowUpstream(serverIP);
+                        } catch (IOException ex) {
+                            if (sendStaleOnError(head, url)) {
+                                continue;
+                            }
+                            throw ex;
+                        }
                     }
+                    upstreamReusable = false;
+                    readAhead(head, url);
 
                     if (method.equalsIgnoreCase("get")) {
-                        handleGet(header, url);
+                        handleGet(head, url);
                         clientLogs.addLog(clientSocket.getInetAddress(), url, "GET", Integer.toString(responseCode));
-                    } else if (method.equalsIgnoreCase("post")) {
-                        handlePost(header);
-                        clientLogs.addLog(clientSocket.getInetAddress(), url, "POST", Integer.toString(responseCode));
+                    } else if (method.equalsIgnoreCase("post") || method.equalsIgnoreCase("put")
+                            || method.equalsIgnoreCase("patch") || method.equalsIgnoreCase("delete")) {
+                        if (!handleWithBody(head)) {
+                            error400();
+                            return;
+                        }
+                        clientLogs.addLog(clientSocket.getInetAddress(), url, method.toUpperCase(Locale.ROOT),
+                                Integer.toString(responseCode));
                     } else if (method.equalsIgnoreCase("head")) {
-                        handleHead(header, url);
+                        handleHead(head, url);
                         clientLogs.addLog(clientSocket.getInetAddress(), url, "HEAD", Integer.toString(responseCode));
                     } else if (method.equalsIgnoreCase("options")) {
-                        handleOptions(header);
+                        handleOptions(head);
                         clientLogs.addLog(clientSocket.getInetAddress(), url, "OPTIONS", Integer.toString(responseCode));
                     } else {
                         // Other methods are not allowed as in the project requirements
                         error405();
                         return;
                     }
+                    upstreamReusable = true;
+                    if (requestClosesConnection(head)) {
+                        keepConnection = false;
+                    }
                 } catch (BadGatewayException ex) {
                     error502();
                     return;
+                } catch (BrokenBodyException ex) {
+                    // Part of the message was already relayed, only closing tells the peer that the rest is missing
+                    clientLogs.addVerboseLog(ex.getMessage() + ": " + ex.getCause().getMessage());
+                    return;
                 } catch (SocketTimeoutException ignore) {
                     // Continue with the persistent connection until one of the peers disconnect
                 } catch (SocketException exs) {
@@ -144,322 +206,617 @@ public final class HTTPHandler extends AbstractProxyHandler {
                 // IOException does not matter at this point
             }
 
-            try {
-                if (serverSocket != null) {
-                    serverSocket.close();
-                }
-            } catch (IOException ignore) {
-                // IOException does not matter at this point
+            releaseUpstream();
+            // The client gets no answer for the rest of the pipeline, it retries them on a new connection
+            if (queued != null) {
+                queued.discard();
             }
+            for (PipelinedRequest request : pipeline) {
+                request.discard();
+            }
+            pipeline.clear();
         }
     }
 
-    // Overloaded function, this one does not do caching suitable for post, options
-    private void sendAllDataToClient() throws IOException {
+    // The absolute URL of the request, null if it cannot have one
+    private static URL requestUrl(MessageHead request) {
+        String fullPath = request.getTarget();
         try {
-            for (int tryAttempt = 0; tryAttempt < SERVER_RETRY; tryAttempt++) {
-                try {
-                    serverIn.transferTo(clientOut);
-                } catch (SocketTimeoutException ignore) {
-                    // Ignore for now
-                }
+            if (fullPath.startsWith("/")) {
+                // Origin form, the hostname is inside the header
+                String host = request.getHeader(HeaderName.HOST);
+                return host == null ? null : new URL("http://" + host + fullPath);
+            }
+            return new URL(fullPath);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    // HTTP/1.1 connections persist unless the client closes them, HTTP/1.0 ones only if the client asks for it
+    private static boolean requestClosesConnection(MessageHead request) {
+        String connection = request.getCombined(HeaderName.CONNECTION);
+        if (request.getVersion().equals("HTTP/1.0")) {
+            return connection == null || !connection.toLowerCase(Locale.ROOT).contains("keep-alive");
+        }
+        return connection != null && connection.toLowerCase(Locale.ROOT).contains("close");
+    }
+
+    private void borrowUpstream(InetAddress serverIP) throws IOException {
+        useUpstream(upstreamPool.borrow(serverIP, 80));
+    }
+
+    private void useUpstream(UpstreamConnection connection) throws IOException {
+        upstream = connection;
+        serverSocket = upstream.getSocket();
+        serverSocket.setSoTimeout(SERVER_TIMEOUT);
+        serverIn = upstream.getInput();
+        serverOut = upstream.getOutput();
+    }
+
+    // Return the origin connection to the pool if it can serve another request, close it otherwise
+    private void releaseUpstream() {
+        if (upstream == null) {
+            return;
+        }
+        if (upstreamReusable) {
+            upstreamPool.release(upstream);
+        } else {
+            upstream.close();
+        }
+        upstream = null;
+        serverSocket = null;
+        serverIn = null;
+        serverOut = null;
+        upstreamReusable = false;
+    }
 
+    /**
+     * Queues the requests the client pipelined behind the current one, only heads that already arrived are read.
+     * Requests the cache cannot answer are sent to the origin right away so their responses are fetched while the
+     * responses before them are written.
+     *
+     * @param   current the request being answered
+     * @param   url     its URL
+     */
+    private void readAhead(MessageHead current, URL url) {
+        MessageHead last = pipeline.isEmpty() ? current : pipeline.peekLast().getRequest();
+        CacheKey currentKey = null;
+        try {
+            while (last != null && isPipelinable(last) && pipeline.size() < PIPELINE_DEPTH && clientIn.hasHead()) {
+                PipelinedRequest next;
                 try {
-                    tempData = -2;
-                    tempData = clientIn.read();
-                    // Did the client close the connection?
-                    if (tempData == -1) {
-                        clientLogs.addVerboseLog("HTTP Connection closed by the client");
-                        keepConnection = false;
-                        return;
-                    }
-                    // Client has a reply continue with the persistent connection
-                    break;
-                } catch (SocketTimeoutException ex) {
-                    // Allow for longer wait for next connection
-                    clientSocket.setSoTimeout(clientSocket.getSoTimeout() * 3);
-                    serverSocket.setSoTimeout(serverSocket.getSoTimeout() * 3);
+                    next = new PipelinedRequest(clientIn.readHead());
+                } catch (MalformedMessageException ex) {
+                    next = new PipelinedRequest(null);
                 }
+                pipeline.add(next);
+                last = next.getRequest();
+                if (currentKey == null) {
+                    currentKey = CacheKey.of(url, current);
+                }
+                sendAhead(next, currentKey);
             }
-        } finally {
-            // Reset timeout values back to their default
-            clientSocket.setSoTimeout(SERVER_TIMEOUT);
-            serverSocket.setSoTimeout(SERVER_TIMEOUT);
+        } catch (IOException ignore) {
+            // The next head is read again at its turn
         }
     }
 
-    private void sendAllDataToClient(URL url, String cacheHeader) throws IOException {
-        String responseHeader;
-        if (cacheHeader != null) {
-            responseHeader = cacheHeader;
-        } else {
-            try {
-                responseHeader = readHeaderFromServer();
-            } catch (ArrayIndexOutOfBoundsException e) {
-                throw new BadGatewayException("Header limit exceeded by server", e);
+    // Only a request without a body that leaves the connection open can be followed by the head of another one
+    private static boolean isPipelinable(MessageHead request) {
+        return (request.methodIs("GET") || request.methodIs("HEAD"))
+                && MessageFraming.requestBodyLength(request) == 0 && !requestClosesConnection(request);
+    }
+
+    // Write a queued request to its own origin connection unless the cache answers it at its turn
+    private void sendAhead(PipelinedRequest queued, CacheKey currentKey) {
+        MessageHead request = queued.getRequest();
+        if (request == null || !(request.methodIs("GET") || request.methodIs("HEAD"))) {
+            return;
+        }
+        URL url = requestUrl(request);
+        if (url == null || storage.isBlocked(url.getHost())) {
+            return;
+        }
+        CacheKey key = CacheKey.of(url, request);
+        if (key.equals(currentKey)) {
+            // Answered from the copy the current request stores, or fetched at its turn
+            return;
+        }
+        for (PipelinedRequest earlier : pipeline) {
+            if (earlier != queued && key.equals(earlier.getKey())) {
+                return;
             }
         }
+        CacheEntry cached = storage.getCacheEntry(key);
+        if (cached != null && canServeWithoutOrigin(request, cached)) {
+            return;
+        }
 
-        int firstSpace = responseHeader.indexOf(' ');
+        UpstreamConnection connection = null;
         try {
-            responseCode = Integer.parseInt(responseHeader.substring(firstSpace + 1, firstSpace + 4));
-        } catch (NumberFormatException e) {
-            responseCode = -1;
+            connection = upstreamPool.borrow(resolver.resolve(url.getHost()), 80);
+            // Ask with the validators of the cached copy, the same request it would get at its turn
+            CacheEntry revalidated = cached != null && cached.hasValidator() ? cached : null;
+            MessageHead sent = request;
+            if (revalidated != null) {
+                sent = request.copy();
+                Freshness.putValidators(sent, revalidated);
+            }
+            sent.writeTo(connection.getOutput());
+            queued.sentAhead(key, connection, revalidated);
+            clientLogs.addVerboseLog("Sent pipelined request for " + key + " ahead of its turn");
+        } catch (IOException ex) {
+            // Sent at its turn instead
+            if (connection != null) {
+                connection.close();
+            }
         }
-        int secondLine = responseHeader.indexOf('\r') + 2;
-        String cacheDate = canCache(new MimeHeader(responseHeader.substring(secondLine)));
-        clientLogs.addVerboseLog("Can cache: " + cacheDate);
+    }
 
-        FileOutputStream cacheFile = null;
-        File cacheLocation = null;
-        if (cacheDate != null) {
+    /**
+     * Forwards one response from the server to the client, the body is framed so the connection is ready for the
+     * next request as soon as the body ends.
+     *
+     * @param   head        true if the response answers a HEAD request, it has no body
+     * @param   request     the request, null if the response must not be stored
+     * @param   key         where to cache the response, null if it must not be stored
+     * @param   cacheHeader the response header if it was already read, null otherwise
+     */
+    private void sendAllDataToClient(boolean head, MessageHead request, CacheKey key, MessageHead cacheHeader)
+            throws IOException {
+        MessageHead responseHead = cacheHeader != null ? cacheHeader : readResponseHeader();
+        responseCode = responseHead.getStatus();
+        // Interim responses are forwarded, the final response follows on the same connection
+        while (responseCode >= 100 && responseCode < 200 && responseCode != 101) {
+            responseHead.writeTo(clientOut);
+            responseHead = readResponseHeader();
+            responseCode = responseHead.getStatus();
+        }
+
+        long responseTime = System.currentTimeMillis();
+        long bodyLength = MessageFraming.responseBodyLength(head, responseCode, responseHead);
+        // A body that ends with the connection cannot be replayed from the cache with a known end
+        boolean storable = key != null && bodyLength != MessageFraming.UNTIL_CLOSE
+                && Freshness.isStorable(responseCode, request, responseHead);
+        clientLogs.addVerboseLog("Can cache: " + storable);
+
+        CacheWriteBehind.Pipeline cacheFile = null;
+        if (storable) {
+            // The cache adds its own Age header when it serves the response
+            byte[] storedHeader = Freshness.withoutAge(responseHead);
+            CacheEntry response = Freshness.describe(responseHead, storedHeader, responseTime);
             try {
-                cacheLocation = storage.getCacheInput(url);
-                if (cacheLocation != null) {
-                    cacheFile = new FileOutputStream(cacheLocation);
-                }
+                // Null if the admission policy rejects it or another request is already caching it
+                cacheFile = storage.getCacheWriter(key, response, Freshness.contentLength(responseHead),
+                        responseHead.getHeader(HeaderName.CONTENT_TYPE));
             } catch (IOException e) {
                 // Disable cache saving due to IO error
-                cacheDate = null;
+                cacheFile = null;
             }
         }
 
-        clientOut.writeBytes(responseHeader);
-        if (cacheDate != null && cacheFile != null) {
-            cacheFile.write(responseHeader.getBytes());
+        responseHead.writeTo(clientOut);
+
+        boolean complete = false;
+        CacheWriteBehind.Pipeline cache = cacheFile;
+        serverSocket.setSoTimeout(BODY_TIMEOUT);
+        try {
+            MessageFraming.copyBody(serverIn, bodyLength, sharedBuffer, (b, off, len) -> {
+                clientOut.write(b, off, len);
+                if (cache != null) {
+                    // Only queued, a full queue or a disk error drops the cached copy and not the client
+                    cache.write(b, off, len);
+                }
+            });
+            complete = true;
+        } catch (SocketException ex) {
+            // The client or the server closed its connection
+            throw ex;
+        } catch (IOException ex) {
+            throw new BrokenBodyException("Response body from the server failed", ex);
+        } finally {
+            // The cached copy is committed as soon as its last byte is known
+            if (cacheFile != null) {
+                cacheFile.finish(complete);
+            }
+            if (!complete) {
+                // The client got a part of the response, only closing tells it that the rest is missing
+                keepConnection = false;
+            }
+            if (serverSocket != null) {
+                serverSocket.setSoTimeout(SERVER_TIMEOUT);
+            }
+        }
+
+        if (bodyLength == MessageFraming.UNTIL_CLOSE) {
+            // The client can only see the end of the body when the connection closes
+            keepConnection = false;
         }
+        if (bodyLength == MessageFraming.UNTIL_CLOSE || MessageFraming.closesConnection(responseHead)) {
+            releaseUpstream();
+        }
+    }
 
-        int tryAttempt = 0;
+    // One write for the whole header, writeBytes would write it byte by byte to the unbuffered socket stream
+    private static void writeHeader(DataOutputStream out, String header) throws IOException {
+        out.write(header.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private MessageHead readResponseHeader() throws IOException {
         try {
-            for (tryAttempt = 0; tryAttempt < SERVER_RETRY; tryAttempt++) {
-                try {
-                    if (cacheDate != null && cacheFile != null) {
-                        bufferIndex = 0;
-                        int read;
-                        while((read = serverIn.read(sharedBuffer, 0, BUFFER_SIZE)) >= 0) {
-                            clientOut.write(sharedBuffer, 0, read);
-
-                            if (cacheFile != null) {
-                                try {
-                                    // Separate catch for the cache since there can a disk related error here
-                                    cacheFile.write(sharedBuffer, 0, read);
-                                } catch (IOException ex) {
-                                    // Cache file broken, delete it and do not try to cache the data again
-                                    try {
-                                        cacheFile.close();
-                                    } catch (IOException ignore) {
-                                        // ignore any exception while deleting since we will delete it anyway
-                                    }
-                                    // Delete the file if not successful then log it
-                                    if (cacheLocation.exists() && !cacheLocation.delete()) {
-                                        clientLogs.addVerboseLog("Failed to delete the cache file " + cacheLocation);
-                                    }
-                                    storage.removeBrokenCache(url);
-                                    cacheFile = null;
-                                }
-                            }
-                        }
-                        break;
-                    } else {
-                        serverIn.transferTo(clientOut);
-                    }
-                } catch (SocketTimeoutException ignore) {
-                    // A possible delay on the network but since the client will not have a reply here
-                    // it will time out bellow and the loop will try to read from the server again
+            return readHeaderFromServer();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new BadGatewayException("Header limit exceeded by server", e);
+        } catch (MalformedMessageException e) {
+            throw new BadGatewayException("Invalid header from server", e);
+        }
+    }
+
+    // Serve a cache hit, the header comes from the index entry and the body from the memory tier or the disk while
+    // small bodies are loaded into the memory tier. HEAD requests never touch the body.
+    private boolean sendCachedToClient(CacheKey key, CacheEntry entry, boolean headerOnly) throws IOException {
+        WritableByteChannel clientTarget = getClientChannel();
+        if (headerOnly) {
+            sendCachedHeader(entry, clientTarget);
+            return true;
+        }
+
+        ByteBuffer object = storage.getHotObject(key, entry);
+        if (object == null) {
+            try (CacheFileHandles.Handle cache = storage.openCache(key, entry)) {
+                if (cache == null) {
+                    return false;
+                }
+                FileChannel cacheChannel = cache.getChannel();
+                long size = entry.getSize();
+                if (size > storage.getHotObjectLimit()) {
+                    sendCachedHeader(entry, clientTarget);
+                    // Let the kernel copy the file to the socket (sendfile), positional so the handle can be shared
+                    transferToClient(cacheChannel, 0, size, clientTarget);
+                    return true;
                 }
 
-                try {
-                    tempData = -2; // Reset temp data flag
-                    tempData = clientIn.read();
-                    // Did the client close the connection?
-                    if (tempData == -1) {
-                        clientLogs.addVerboseLog("HTTP Connection closed by the client");
-                        keepConnection = false;
-                        return;
-                    }
-                    // Client has a reply continue with the persistent connection
-                    break;
-                } catch (SocketTimeoutException ex) {
-                    // Allow for longer wait for next connection
-                    clientSocket.setSoTimeout(clientSocket.getSoTimeout() * 3);
-                    serverSocket.setSoTimeout(serverSocket.getSoTimeout() * 3);
+                ByteBuffer loaded = ByteBuffer.allocateDirect((int) size);
+                while (loaded.hasRemaining() && cacheChannel.read(loaded, loaded.position()) >= 0) {
+                    // Read the whole file into memory
                 }
+                loaded.flip();
+                // The body is read anyway, check it before it is kept in memory
+                CRC32 checksum = new CRC32();
+                checksum.update(loaded.duplicate());
+                if (loaded.remaining() != size || checksum.getValue() != entry.getChecksum()) {
+                    clientLogs.addVerboseLog("Dropping the corrupt cached copy of " + key);
+                    storage.removeCorruptCache(key, entry);
+                    return false;
+                }
+                storage.offerHotObject(key, entry, loaded.asReadOnlyBuffer());
+                object = loaded;
             }
-        } finally {
-            // Save cache if it is open
-            if (cacheFile != null) {
-                cacheFile.flush();
-                cacheFile.close();
+        }
 
-                // Timeout detected possibly broken cache
-                if (tryAttempt >= SERVER_RETRY) {
-                    if (cacheLocation.exists() && !cacheLocation.delete()) {
-                        clientLogs.addVerboseLog("Failed to delete broken cache file " + cacheLocation);
-                    }
-                    storage.removeBrokenCache(url);
-                } else {
-                    storage.saveCacheIndex(url, cacheDate);
-                }
+        // Write straight from the off-heap buffer to the socket
+        sendCachedHeader(entry, clientTarget);
+        writeToClient(object, clientTarget);
+        return true;
+    }
+
+    // The stored header with an Age header inserted before its blank line
+    private static void sendCachedHeader(CacheEntry entry, WritableByteChannel target) throws IOException {
+        ByteBuffer stored = entry.getHeader();
+        stored.limit(stored.limit() - 2);
+        byte[] age = ("Age: " + entry.getAge() / 1000 + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        // One write, the header leaves in a single segment
+        ByteBuffer header = ByteBuffer.allocate(stored.remaining() + age.length);
+        header.put(stored).put(age).flip();
+        writeToClient(header, target);
+    }
+
+    private static void transferToClient(FileChannel cache, long from, long to, WritableByteChannel target)
+            throws IOException {
+        while (from < to) {
+            from += cache.transferTo(from, to - from, target);
+        }
+    }
+
+    private static void writeToClient(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    // The socket channel lets file transfers and direct buffers skip the Java heap
+    private WritableByteChannel getClientChannel() {
+        SocketChannel clientChannel = clientSocket.getChannel();
+        return clientChannel != null ? clientChannel : Channels.newChannel(clientOut);
+    }
+
+    // Answer with a stale copy when the origin cannot be reached or fails, if its stale-if-error window allows it
+    private boolean sendStaleOnError(MessageHead request, URL url) {
+        boolean head = request.methodIs("HEAD");
+        if (!head && !request.methodIs("GET")) {
+            return false;
+        }
+        CacheKey key = CacheKey.of(url, request);
+        CacheEntry cached = storage.getCacheEntry(key);
+        if (cached == null || !cached.isUsableOnError() || !isSharedWith(request, cached)) {
+            return false;
+        }
+        try {
+            if (sendCachedToClient(key, cached, head)) {
+                clientLogs.addVerboseLog("Origin failed, served the cached copy of " + key);
+                clientLogs.addLog(clientSocket.getInetAddress(), url, head ? "HEAD" : "GET", "STALE");
+                return true;
             }
+        } catch (IOException ignore) {
+            // The client is gone as well
+        }
+        return false;
+    }
 
-            // Reset timeout values back to the default
-            clientSocket.setSoTimeout(SERVER_TIMEOUT);
-            serverSocket.setSoTimeout(SERVER_TIMEOUT);
+    // Revalidation failed, the origin connection is in an unknown state so it is dropped
+    private boolean sendStaleAfterFailedRevalidation(CacheKey key, CacheEntry cached, MessageHead request, boolean head)
+            throws IOException {
+        if (!cached.isUsableOnError() || !isSharedWith(request, cached)) {
+            return false;
         }
+        releaseUpstream();
+        clientLogs.addVerboseLog("Revalidation failed, serving the stale copy of " + key);
+        return sendFromCache(key, cached, request, head);
     }
 
-    private String canCache(MimeHeader parameters) {
-        // Can we cache the content?
-        return parameters.get("Last-Modified");
-    }
-
-    private void handleHead(String header, URL url) throws IOException {
-        Object[] cacheResult = storage.isCached(url);
-        boolean headerSent = false;
-        int secondLine = header.indexOf('\r') + 2;
-        MimeHeader mh = new MimeHeader(header.substring(secondLine));
-        String cacheResponse = null;
-
-        // Did the client cache it?
-        if (mh.get("If-Modified-Since") == null) {
-            if (cacheResult != null) {
-                String cacheDate = (String) cacheResult[1];
-                mh.put("If-Modified-Since", cacheDate);
-                String request = header.substring(0, secondLine) + mh;
-                clientLogs.addVerboseLog("Checking if the cache is valid");
-                serverOut.writeBytes(request);
-                headerSent = true;
-
-                cacheResponse = readHeaderFromServer();
-                // Can use the website in the cache?
-                if (cacheResponse.substring(0, 3).equalsIgnoreCase("304")) {
-                    clientLogs.addVerboseLog("Cached website found for " + url.getHost() + url.getPath());
-                    FileInputStream cache = (FileInputStream) cacheResult[0];
-                    cache.transferTo(clientOut);
-                    cache.close();
-                    return;
-                } else {
-                    clientLogs.addVerboseLog("Cache requires update!");
-                }
+    // Answer with a 304 if the copy of the client is the cached one, with the cached response otherwise
+    private boolean sendFromCache(CacheKey key, CacheEntry cached, MessageHead request, boolean head) throws IOException {
+        if (Freshness.hasValidators(request) && Freshness.validatorsMatch(request, cached)) {
+            return sendNotModified(key, cached, head);
+        }
+        return sendCachedToClient(key, cached, head);
+    }
+
+    // Answer the validators of the client locally, the 304 carries the caching headers of the stored response
+    private boolean sendNotModified(CacheKey key, CacheEntry cached, boolean head) throws IOException {
+        MessageHead stored = storedHead(cached);
+        if (stored == null) {
+            // Stored before heads were validated, answer with the whole cached response
+            return sendCachedToClient(key, cached, head);
+        }
+        StringBuilder response = new StringBuilder("HTTP/1.1 304 Not Modified\r\n");
+        for (HeaderName name : NOT_MODIFIED_HEADERS) {
+            for (String value : stored.getHeaders(name)) {
+                response.append(name).append(": ").append(value).append("\r\n");
             }
         }
+        response.append("Age: ").append(cached.getAge() / 1000).append("\r\n\r\n");
+        writeHeader(clientOut, response.toString());
+        responseCode = 304;
+        clientLogs.addVerboseLog("Answered the validators of the client from the cache for " + key);
+        return true;
+    }
 
-        if (!headerSent) {
-            serverOut.writeBytes(header);
+    // Fresh copies are served without asking the origin, stale ones too while a worker revalidates them
+    private boolean serveWithoutOrigin(CacheKey key, MessageHead request, CacheEntry cached) {
+        if (!canServeWithoutOrigin(request, cached)) {
+            return false;
+        }
+        if (cached.isFresh()) {
+            clientLogs.addVerboseLog("Fresh cached website found for " + key);
+        } else {
+            clientLogs.addVerboseLog("Serving the stale copy of " + key + " while revalidating");
+            Revalidator.getRevalidator().revalidate(key, request, cached);
         }
+        return true;
+    }
 
-        clientLogs.addVerboseLog("Sent HEAD request to server");
-        sendAllDataToClient(url, cacheResponse);
+    private static boolean canServeWithoutOrigin(MessageHead request, CacheEntry cached) {
+        if (Freshness.requiresRevalidation(request) || !Freshness.satisfiesRequest(request, cached)
+                || !isSharedWith(request, cached)) {
+            return false;
+        }
+        return cached.isFresh() || cached.isUsableWhileRevalidating() || Freshness.acceptsStale(request, cached);
     }
 
-    private void handleGet(String header, URL url) throws IOException {
-        Object[] cacheResult = storage.isCached(url);
-        boolean headerSent = false;
-        int secondLine = header.indexOf('\r') + 2;
-        MimeHeader mh = new MimeHeader(header.substring(secondLine));
-        String cacheResponse = null;
+    // A request with credentials only gets a stored response the origin marked as shared
+    private static boolean isSharedWith(MessageHead request, CacheEntry cached) {
+        if (request.getHeader(HeaderName.AUTHORIZATION) == null) {
+            return true;
+        }
+        MessageHead stored = storedHead(cached);
+        return stored != null && Freshness.isSharedWith(request, stored);
+    }
 
-        // Did the client cache it?
-        if (mh.get("If-Modified-Since") == null) {
-            if (cacheResult != null) {
-                String cacheDate = (String) cacheResult[1];
-                mh.put("If-Modified-Since", cacheDate);
-                String request = header.substring(0, secondLine) + mh;
-                clientLogs.addVerboseLog("Asking if the cache is valid");
-                serverOut.writeBytes(request);
-                headerSent = true;
-                try {
-                    cacheResponse = readHeaderFromServer();
-                } catch (SocketTimeoutException ex) { // Slow server
+    // The stored status line and headers, null if they cannot be parsed
+    private static MessageHead storedHead(CacheEntry cached) {
+        ByteBuffer storedHeader = cached.getHeader();
+        byte[] storedBytes = new byte[storedHeader.remaining()];
+        storedHeader.get(storedBytes);
+        try {
+            return MessageHead.parse(storedBytes);
+        } catch (MalformedMessageException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isServerError(MessageHead response) {
+        return response.getStatus() / 100 == 5;
+    }
+
+    // Store the freshness a 304 response gives to the cached copy it confirmed
+    private CacheEntry refreshCache(CacheKey key, CacheEntry cached, MessageHead confirmation) {
+        return storage.refreshCache(key, cached,
+                Freshness.confirmedValidity(confirmation, cached, System.currentTimeMillis()));
+    }
+
+    private void handleHead(MessageHead request, URL url) throws IOException {
+        handleCacheable(request, url, true);
+    }
+
+    private void handleGet(MessageHead request, URL url) throws IOException {
+        handleCacheable(request, url, false);
+    }
 
+    // GET and HEAD, answered from the cache when possible
+    private void handleCacheable(MessageHead request, URL url, boolean head) throws IOException {
+        CacheKey key;
+        CacheEntry cached;
+        // A request sent ahead only has its response left, the cache was already looked up
+        boolean headerSent = sentAhead != null;
+        MessageHead cacheResponse = null;
+
+        if (headerSent) {
+            key = sentAhead.getKey();
+            cached = sentAhead.getRevalidated();
+        } else {
+            // Hashed once, every cache operation of the request uses the digest
+            key = CacheKey.of(url, request);
+            cached = storage.getCacheEntry(key);
+
+            // Another request is already fetching and caching it, follow that response
+            if (!head && !Freshness.hasValidators(request) && request.getHeader(HeaderName.AUTHORIZATION) == null
+                    && storage.streamInFlight(key, getClientChannel())) {
+                clientLogs.addVerboseLog("Collapsed the request into the running fetch of " + key);
+                return;
+            }
+        }
+
+        if (!headerSent && cached != null && serveWithoutOrigin(key, request, cached)) {
+            if (sendFromCache(key, cached, request, head)) {
+                return;
+            }
+        } else if (cached != null && cached.hasValidator()) {
+            // Ask with the validators of the cached copy, the client gets its answer from the cache
+            clientLogs.addVerboseLog("Asking if the cache is valid");
+            try {
+                if (!headerSent) {
+                    MessageHead revalidation = request.copy();
+                    Freshness.putValidators(revalidation, cached);
+                    revalidation.writeTo(serverOut);
+                    headerSent = true;
                 }
-                if (cacheResponse == null) {
-                    throw new IOException("Reading response from the server failed!");
+                cacheResponse = readResponseHeader();
+            } catch (IOException ex) {
+                if (sendStaleAfterFailedRevalidation(key, cached, request, head)) {
+                    return;
                 }
-                // Can use the website in the cache?
-                int firstStatus = cacheResponse.indexOf(" ") + 1;
-                if (cacheResponse.substring(firstStatus, firstStatus + 3).equalsIgnoreCase("304")) {
-                    clientLogs.addVerboseLog("Cached website found for " + url.getHost() + url.getPath());
-                    FileInputStream cache = (FileInputStream) cacheResult[0];
-                    cache.transferTo(clientOut);
-                    cache.close();
+                throw ex;
+            }
+            if (isServerError(cacheResponse) && sendStaleAfterFailedRevalidation(key, cached, request, head)) {
+                return;
+            }
+            // Can use the website in the cache?
+            if (cacheResponse.getStatus() == 304) {
+                clientLogs.addVerboseLog("Cached website found for " + key);
+                if (sendFromCache(key, refreshCache(key, cached, cacheResponse), request, head)) {
                     return;
-                } else {
-                    clientLogs.addVerboseLog("Cache requires update!");
                 }
+                // Evicted while revalidating, fetch it again with the request of the client
+                clientLogs.addVerboseLog("Cached website was evicted, fetching it again");
+                headerSent = false;
+                cacheResponse = null;
+            } else {
+                clientLogs.addVerboseLog("Cache requires update!");
             }
         }
 
         if (!headerSent) {
-            serverOut.writeBytes(header);
+            request.writeTo(serverOut);
         }
 
-        clientLogs.addVerboseLog("Sent GET to Web Server:");
-        sendAllDataToClient(url, cacheResponse);
+        clientLogs.addVerboseLog(head ? "Sent HEAD request to server" : "Sent GET to Web Server:");
+        // A HEAD response has no body, it cannot be stored for later GET requests
+        sendAllDataToClient(head, request, head ? null : key, cacheResponse);
     }
 
-    private void handlePost(String header) throws IOException {
-        serverOut.writeBytes(header);
-        clientSocket.setSoTimeout(300);
+    /**
+     * Forwards a request that may carry a body, POST, PUT, PATCH and DELETE, the body is streamed as it is framed.
+     *
+     * @return  false if the request body cannot be framed and nothing was sent to the server
+     */
+    private boolean handleWithBody(MessageHead request) throws IOException {
+        long bodyLength = MessageFraming.requestBodyLength(request);
+        if (bodyLength == MessageFraming.UNTIL_CLOSE) {
+            return false;
+        }
+        request.writeTo(serverOut);
+
+        if (bodyLength != 0 && MessageFraming.expectsContinue(request)) {
+            MessageHead answer = awaitContinue();
+            if (answer == null) {
+                // The server is silent, maybe HTTP/1.0, let the client send the body anyway
+                writeHeader(clientOut, CONTINUE);
+            } else if (answer.getStatus() == 100) {
+                answer.writeTo(clientOut);
+            } else {
+                // Refused before the body, the client may still send it so the connection cannot carry on
+                clientLogs.addVerboseLog("Server answered before the request body");
+                keepConnection = false;
+                sendAllDataToClient(false, null, null, answer);
+                // The server may still wait for the body, the next request on it would be read as the body
+                upstreamReusable = false;
+                releaseUpstream();
+                return true;
+            }
+        }
+
+        clientSocket.setSoTimeout(BODY_TIMEOUT);
+        boolean complete = false;
         try {
-            long readBytes = clientIn.transferTo(serverOut);
-            if (readBytes == -1) {
+            MessageFraming.copyBody(clientIn, bodyLength, sharedBuffer, serverOut::write);
+            complete = true;
+        } catch (SocketException ex) {
+            // The client or the server closed its connection
+            throw ex;
+        } catch (IOException ex) {
+            // Aborted by the client in the middle of the body, or badly framed
+            throw new BrokenBodyException("Request body from the client failed", ex);
+        } finally {
+            clientSocket.setSoTimeout(SERVER_TIMEOUT);
+            if (!complete) {
+                // The server got a part of the body, neither connection can carry another request
                 keepConnection = false;
             }
-        } catch (SocketTimeoutException ignore) {
-            // Ignore since all data transfer should have finished
         }
-        clientSocket.setSoTimeout(SERVER_TIMEOUT);
 
-        clientLogs.addVerboseLog("Sent POST to Web Server:");
+        clientLogs.addVerboseLog("Sent request body to Web Server");
+        sendAllDataToClient(false, null, null, null);
+        return true;
+    }
 
-        String responseHeader = readHeaderFromServer();
-        int firstSpace = responseHeader.indexOf(' ');
+    // The answer of the server to an Expect: 100-continue request, null if it did not answer in time
+    private MessageHead awaitContinue() throws IOException {
+        serverSocket.setSoTimeout(CONTINUE_TIMEOUT);
         try {
-            responseCode = Integer.parseInt(responseHeader.substring(firstSpace + 1, firstSpace + 4));
-        } catch (NumberFormatException e) {
-            responseCode = -1;
+            MessageHead answer = serverIn.readHead();
+            if (answer == null) {
+                throw new SocketException("Server Disconnected");
+            }
+            return answer;
+        } catch (SocketTimeoutException ex) {
+            // A partly read answer stays buffered, reading the response continues there
+            return null;
+        } catch (ArrayIndexOutOfBoundsException | MalformedMessageException e) {
+            throw new BadGatewayException("Invalid header from server", e);
+        } finally {
+            serverSocket.setSoTimeout(SERVER_TIMEOUT);
         }
-        clientOut.writeBytes(responseHeader);
-        sendAllDataToClient();
     }
 
-    private void handleOptions(String header) throws IOException {
-        serverOut.writeBytes(header);
+    private void handleOptions(MessageHead request) throws IOException {
+        request.writeTo(serverOut);
         clientLogs.addVerboseLog("Sent OPTIONS request to server");
-
-        String responseHeader = readHeaderFromServer();
-        int firstSpace = responseHeader.indexOf(' ');
-        try {
-            responseCode = Integer.parseInt(responseHeader.substring(firstSpace + 1, firstSpace + 4));
-        } catch (NumberFormatException e) {
-            responseCode = -1;
-        }
-        clientOut.writeBytes(responseHeader);
-        sendAllDataToClient();
+        sendAllDataToClient(false, null, null, null);
     }
 
     @Override
-    protected String readHeaderFromClient() throws IOException, ArrayIndexOutOfBoundsException {
-        int temp;
-        bufferIndex = 0;
-        if (tempData != -2) {
-            sharedBuffer[bufferIndex++] = (byte) tempData;
-            tempData = -2;
-        }
-
+    protected MessageHead readHeaderFromClient() throws IOException, ArrayIndexOutOfBoundsException {
+        MessageHead head = null;
         int tryAttempt;
         for (tryAttempt = 0; tryAttempt < SERVER_RETRY; tryAttempt++) {
             try {
-                do {
-                    // readByte throws IOException instead of writing -1 to array so, I use this one
-                    temp = clientIn.read();
-                    if (temp == -1) {
-                        throw new SocketException("Client Disconnected");
-                    }
-                    sharedBuffer[bufferIndex++] = (byte) temp;
-                } while (sharedBuffer[bufferIndex - 1] != '\n' || sharedBuffer[bufferIndex - 2] != '\r'
-                        || sharedBuffer[bufferIndex - 3] != '\n' || sharedBuffer[bufferIndex - 4] != '\r');
+                // Buffered, a timeout keeps the part that was read
+                head = clientIn.readHead();
+                if (head == null) {
+                    throw new SocketException("Client Disconnected");
+                }
                 clientSocket.setSoTimeout(SERVER_TIMEOUT);
                 break;
             } catch (SocketTimeoutException ex) {
@@ -473,25 +830,18 @@ public final class HTTPHandler extends AbstractProxyHandler {
             throw new SocketException("Client timeout");
         }
 
-        return new String(sharedBuffer, 0, bufferIndex);
+        return head;
     }
 
-    private String readHeaderFromServer() throws IOException, ArrayIndexOutOfBoundsException{
-        bufferIndex = 0;
-        int temp;
-
+    private MessageHead readHeaderFromServer() throws IOException, ArrayIndexOutOfBoundsException {
+        MessageHead head = null;
         int tryAttempt;
         for (tryAttempt = 0; tryAttempt < SERVER_RETRY; tryAttempt++) {
             try {
-                do {
-                    // readByte throws IOException instead of writing -1 to array so, I use this one
-                    temp = serverIn.read();
-                    if (temp == -1) {
-                        throw new SocketException("Client Disconnected");
-                    }
-                    sharedBuffer[bufferIndex++] = (byte) temp;
-                } while (sharedBuffer[bufferIndex - 1] != '\n' || sharedBuffer[bufferIndex - 2] != '\r'
-                        || sharedBuffer[bufferIndex - 3] != '\n' || sharedBuffer[bufferIndex - 4] != '\r');
+                head = serverIn.readHead();
+                if (head == null) {
+                    throw new SocketException("Server Disconnected");
+                }
                 serverSocket.setSoTimeout(SERVER_TIMEOUT);
                 break;
             } catch (SocketTimeoutException e) {
@@ -505,12 +855,12 @@ public final class HTTPHandler extends AbstractProxyHandler {
             throw new SocketException("Server timeout");
         }
 
-        return new String(sharedBuffer, 0, bufferIndex);
+        return head;
     }
 
     private void sendErrorToClient(String response) {
         try {
-            clientOut.writeBytes(response);
+            writeHeader(clientOut, response);
         } catch (IOException ignore) {
             // Failed to send error to the client ignore
         }
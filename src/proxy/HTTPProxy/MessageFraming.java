@@ -0,0 +1,173 @@
+package proxy.HTTPProxy;
+
+import proxy.utils.HeaderName;
+import proxy.utils.MessageHead;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * HTTP/1.1 message framing (RFC 9112 section 6), finds exactly where a message body ends so the connection can
+ * carry the next message right away.
+ * <p>
+ * Bodies are copied as they are on the wire, chunked bodies keep their chunk lines and trailers.
+ */
+final class MessageFraming {
+    // Body lengths that are not a byte count
+    static final long CHUNKED = -2;
+    static final long UNTIL_CLOSE = -1;
+
+    private static final int MAX_LINE = 8192;
+
+    /**
+     * Receives the bytes of a body as they are read.
+     */
+    interface BodySink {
+        void write(byte[] b, int off, int len) throws IOException;
+    }
+
+    private MessageFraming() {
+    }
+
+    /**
+     * @param   head    true if the response answers a HEAD request
+     * @param   status  the response status code
+     * @param   headers the response headers
+     * @return  the body length, CHUNKED, or UNTIL_CLOSE if the body ends when the server closes the connection
+     */
+    static long responseBodyLength(boolean head, int status, MessageHead headers) {
+        if (head || (status >= 100 && status < 200) || status == 204 || status == 304) {
+            return 0;
+        }
+        String transferEncoding = headers.getCombined(HeaderName.TRANSFER_ENCODING);
+        if (transferEncoding != null) {
+            // Only a final chunked coding frames the body, anything else is read until the close
+            return transferEncoding.trim().toLowerCase(Locale.ROOT).endsWith("chunked") ? CHUNKED : UNTIL_CLOSE;
+        }
+        long length = Freshness.contentLength(headers);
+        return length >= 0 ? length : UNTIL_CLOSE;
+    }
+
+    /**
+     * @param   headers the request headers
+     * @return  the body length, 0 if the request has no body, CHUNKED, or UNTIL_CLOSE if the body cannot be framed
+     *          and the request must be rejected
+     */
+    static long requestBodyLength(MessageHead headers) {
+        String transferEncoding = headers.getCombined(HeaderName.TRANSFER_ENCODING);
+        if (transferEncoding != null) {
+            // A request body never ends with the connection, it has to be chunked last
+            return transferEncoding.trim().toLowerCase(Locale.ROOT).endsWith("chunked") ? CHUNKED : UNTIL_CLOSE;
+        }
+        if (headers.getHeader(HeaderName.CONTENT_LENGTH) == null) {
+            return 0;
+        }
+        long length = Freshness.contentLength(headers);
+        return length >= 0 ? length : UNTIL_CLOSE;
+    }
+
+    /**
+     * @param   headers the request headers
+     * @return  true if the client waits for a 100 (Continue) response before it sends the body
+     */
+    static boolean expectsContinue(MessageHead headers) {
+        String expect = headers.getHeader(HeaderName.EXPECT);
+        return expect != null && expect.trim().equalsIgnoreCase("100-continue");
+    }
+
+    /**
+     * @param   headers the message headers
+     * @return  true if the sender closes the connection after this message
+     */
+    static boolean closesConnection(MessageHead headers) {
+        String connection = headers.getCombined(HeaderName.CONNECTION);
+        return connection != null && connection.toLowerCase(Locale.ROOT).contains("close");
+    }
+
+    /**
+     * Copies one body from the stream, the stream is left at the first byte after it.
+     *
+     * @param   in      the stream positioned at the start of the body
+     * @param   length  the body length, CHUNKED or UNTIL_CLOSE
+     * @param   buffer  the buffer to copy through
+     * @param   sink    where the body goes
+     * @throws  IOException If reading or writing fails, or the stream ends before the body
+     */
+    static void copyBody(InputStream in, long length, byte[] buffer, BodySink sink) throws IOException {
+        if (length == CHUNKED) {
+            copyChunked(in, buffer, sink);
+        } else if (length == UNTIL_CLOSE) {
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) >= 0) {
+                sink.write(buffer, 0, read);
+            }
+        } else {
+            copyFixed(in, length, buffer, sink);
+        }
+    }
+
+    private static void copyFixed(InputStream in, long length, byte[] buffer, BodySink sink) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Connection closed " + remaining + " bytes before the end of the body");
+            }
+            sink.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private static void copyChunked(InputStream in, byte[] buffer, BodySink sink) throws IOException {
+        while (true) {
+            String sizeLine = copyLine(in, sink);
+            int extension = sizeLine.indexOf(';');
+            long size;
+            try {
+                size = Long.parseLong((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid chunk size: " + sizeLine);
+            }
+            if (size < 0) {
+                throw new IOException("Invalid chunk size: " + sizeLine);
+            }
+            if (size == 0) {
+                // Trailer fields until the blank line
+                while (!copyLine(in, sink).isEmpty()) {
+                    // Forwarded as they are
+                }
+                return;
+            }
+            copyFixed(in, size, buffer, sink);
+            if (!copyLine(in, sink).isEmpty()) {
+                throw new IOException("Chunk data is not followed by CRLF");
+            }
+        }
+    }
+
+    // Copies one line including its line break, returns it without the line break
+    private static String copyLine(InputStream in, BodySink sink) throws IOException {
+        byte[] line = new byte[64];
+        int length = 0;
+        while (length == 0 || line[length - 1] != '\n') {
+            int read = in.read();
+            if (read < 0) {
+                throw new EOFException("Connection closed inside a chunked body");
+            }
+            if (length == MAX_LINE) {
+                throw new IOException("Chunk line limit exceeded");
+            }
+            if (length == line.length) {
+                byte[] larger = new byte[Math.min(MAX_LINE, line.length * 2)];
+                System.arraycopy(line, 0, larger, 0, length);
+                line = larger;
+            }
+            line[length++] = (byte) read;
+        }
+        sink.write(line, 0, length);
+        int end = length >= 2 && line[length - 2] == '\r' ? length - 2 : length - 1;
+        return new String(line, 0, end);
+    }
+}
@@ -0,0 +1,68 @@
+package proxy.HTTPProxy;
+
+import proxy.utils.CacheEntry;
+import proxy.utils.CacheKey;
+import proxy.utils.MessageHead;
+
+/**
+ * A request the client pipelined behind the one being answered, queued until its response may be written.
+ * <p>
+ * A request the cache cannot answer is sent to the origin ahead of its turn on its own connection, its response
+ * waits on that connection until the responses before it are written.
+ */
+final class PipelinedRequest {
+    private final MessageHead request;
+    private CacheKey key;
+    private UpstreamConnection upstream;
+    private CacheEntry revalidated;
+
+    /**
+     * @param   request the request, null if its head was invalid and the client gets a 400 at its turn
+     */
+    PipelinedRequest(MessageHead request) {
+        this.request = request;
+    }
+
+    MessageHead getRequest() {
+        return request;
+    }
+
+    /**
+     * Records that the request was sent ahead.
+     *
+     * @param   key         the cache key of the request
+     * @param   upstream    the connection the request was written to, its response is unread
+     * @param   revalidated the cached copy whose validators were sent instead of the client ones, null otherwise
+     */
+    void sentAhead(CacheKey key, UpstreamConnection upstream, CacheEntry revalidated) {
+        this.key = key;
+        this.upstream = upstream;
+        this.revalidated = revalidated;
+    }
+
+    // Null if the request was not sent ahead
+    CacheKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return  the connection with the response, null if the request was not sent ahead or it was already taken
+     */
+    UpstreamConnection takeUpstream() {
+        UpstreamConnection connection = upstream;
+        upstream = null;
+        return connection;
+    }
+
+    CacheEntry getRevalidated() {
+        return revalidated;
+    }
+
+    // Dropped before its turn, the unread response makes the connection useless
+    void discard() {
+        if (upstream != null) {
+            upstream.close();
+            upstream = null;
+        }
+    }
+}
@@ -6,7 +6,6 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class PlainProxy extends AbstractProxyListener {
@@ -16,7 +15,7 @@ public class PlainProxy extends AbstractProxyListener {
 
     @Override
     public void run() {
-        ExecutorService executorThreads = Executors.newFixedThreadPool(SERVER_THREADS);
+        ExecutorService executorThreads = createExecutor();
         try {
             while (serverOn) {
                 Socket clientConnection = serverListener.accept();
@@ -0,0 +1,192 @@
+package proxy.HTTPProxy;
+
+import proxy.utils.CacheEntry;
+import proxy.utils.CacheKey;
+import proxy.utils.DnsCache;
+import proxy.utils.HeaderName;
+import proxy.utils.InFlightResponse;
+import proxy.utils.Logger;
+import proxy.utils.MessageHead;
+import proxy.utils.MessageReader;
+import proxy.utils.ProxyStorage;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Refreshes stale cache entries in the background while HTTPHandler keeps serving the stale copy
+ * (stale-while-revalidate), so clients do not wait for the origin.
+ * <p>
+ * Every refresh uses its own short-lived origin connection. A URL is refreshed by at most one worker at a time.
+ */
+public final class Revalidator {
+    private static Revalidator revalidatorInstance;
+    private static final Object instanceLock = new Object();
+
+    private static final int WORKERS = 4;
+    private static final int CONNECT_TIMEOUT = 5_000; // ms
+    private static final int READ_TIMEOUT = 10_000; // ms
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ExecutorService workers;
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+    private final LongAdder refreshed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public static Revalidator getRevalidator() {
+        Revalidator obj = revalidatorInstance;
+        if (obj == null) {
+            synchronized (instanceLock) {
+                // While a thread was waiting for this lock another thread might have initialized it
+                obj = revalidatorInstance;
+                if (obj == null) {
+                    obj = new Revalidator();
+                    revalidatorInstance = obj;
+                }
+            }
+        }
+        return obj;
+    }
+
+    private Revalidator() {
+        workers = Executors.newFixedThreadPool(WORKERS, task -> {
+            Thread thread = new Thread(task, "cache-revalidator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a refresh of a stale entry unless one is already running for the URL.
+     *
+     * @param   key     the key of the entry
+     * @param   request the client request that found the entry stale, its headers are sent to the origin
+     * @param   cached  the stale entry
+     */
+    void revalidate(CacheKey key, MessageHead request, CacheEntry cached) {
+        if (!running.add(key.getDigest())) {
+            return;
+        }
+        // Edited by the worker, the client connection keeps its own request. Always a GET, the answer to a HEAD has
+        // no body to store.
+        MessageHead revalidation = request.methodIs("GET") ? request.copy() : request.withMethod("GET");
+        workers.execute(() -> {
+            try {
+                refresh(key, revalidation, cached);
+                refreshed.increment();
+            } catch (IOException ex) {
+                failed.increment();
+                Logger.getLogger().addVerboseLog("Background revalidation of " + key + " failed: " + ex.getMessage());
+            } finally {
+                running.remove(key.getDigest());
+            }
+        });
+    }
+
+    private void refresh(CacheKey key, MessageHead request, CacheEntry cached) throws IOException {
+        ProxyStorage storage = ProxyStorage.getStorage();
+        InetAddress serverIP = DnsCache.getCache().resolve(key.getUrl().getHost());
+
+        // The connection is not reused
+        request.remove(HeaderName.KEEP_ALIVE);
+        request.remove(HeaderName.PROXY_CONNECTION);
+        request.set(HeaderName.CONNECTION, "close");
+        Freshness.putValidators(request, cached);
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(serverIP, 80), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            DataOutputStream serverOut = new DataOutputStream(socket.getOutputStream());
+            MessageReader serverIn = new MessageReader(socket.getInputStream());
+            request.writeTo(serverOut);
+
+            MessageHead response = readHeader(serverIn);
+            long responseTime = System.currentTimeMillis();
+            int responseCode = response.getStatus();
+            if (responseCode < 0) {
+                throw new IOException("Invalid response status");
+            }
+
+            if (responseCode == 304) {
+                storage.refreshCache(key, cached, Freshness.confirmedValidity(response, cached, responseTime));
+                return;
+            }
+            long bodyLength = MessageFraming.responseBodyLength(false, responseCode, response);
+            // A body that ends with the connection cannot be told apart from one cut short
+            if (bodyLength == MessageFraming.UNTIL_CLOSE || !Freshness.isStorable(responseCode, request, response)) {
+                // The stale copy is left alone, it expires from the stale windows on its own
+                return;
+            }
+
+            // Already cached, so it skips the admission policy but not its size limit
+            long maxObjectSize = storage.getObjectSizeLimit();
+            if (Freshness.contentLength(response) > maxObjectSize) {
+                return;
+            }
+
+            byte[] storedHeader = Freshness.withoutAge(response);
+            InFlightResponse cacheFile = storage.getCacheInput(key, storedHeader);
+            if (cacheFile == null) {
+                // A client request is already storing a new copy
+                return;
+            }
+            boolean complete = false;
+            // Once the copy is dropped the collapsed readers get the rest of the body relayed
+            boolean[] copying = {true};
+            long[] received = {0};
+            try (cacheFile) {
+                MessageFraming.copyBody(serverIn, bodyLength, new byte[BUFFER_SIZE], (b, off, len) -> {
+                    if (copying[0] && received[0] + len > maxObjectSize) {
+                        // A chunked body has no declared length to check up front
+                        copying[0] = false;
+                        cacheFile.dropCopy();
+                    }
+                    if (copying[0]) {
+                        try {
+                            cacheFile.write(b, off, len);
+                        } catch (IOException ex) {
+                            copying[0] = false;
+                            cacheFile.dropCopy();
+                        }
+                    }
+                    if (!copying[0] && !cacheFile.relay(received[0], b, off, len)) {
+                        throw new IOException("Body not cached and no collapsed request waits for it");
+                    }
+                    received[0] += len;
+                });
+                complete = true;
+            } finally {
+                cacheFile.endBody(complete, received[0]);
+                if (complete && copying[0]) {
+                    storage.saveCacheIndex(key, Freshness.describe(response, storedHeader, responseTime));
+                } else {
+                    storage.removeBrokenCache(key);
+                }
+            }
+        }
+    }
+
+    private static MessageHead readHeader(MessageReader in) throws IOException {
+        MessageHead head;
+        try {
+            head = in.readHead();
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Header limit exceeded by server");
+        }
+        if (head == null) {
+            throw new EOFException("Server closed the connection");
+        }
+        return head;
+    }
+
+    public String getStats() {
+        return "Background revalidation: " + refreshed.sum() + " refreshed, " + failed.sum() + " failed";
+    }
+}
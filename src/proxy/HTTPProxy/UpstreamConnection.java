@@ -0,0 +1,64 @@
+package proxy.HTTPProxy;
+
+import proxy.utils.MessageReader;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * An origin server connection that can be parked in the UpstreamPool between requests.
+ */
+final class UpstreamConnection {
+    private final String key;
+    private final InetAddress address;
+    private final Socket socket;
+    private final MessageReader in;
+    private final DataOutputStream out;
+    private long idleSince;
+
+    UpstreamConnection(String key, InetAddress address, Socket socket) throws IOException {
+        this.key = key;
+        this.address = address;
+        this.socket = socket;
+        in = new MessageReader(socket.getInputStream());
+        out = new DataOutputStream(socket.getOutputStream());
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    InetAddress getAddress() {
+        return address;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    MessageReader getInput() {
+        return in;
+    }
+
+    DataOutputStream getOutput() {
+        return out;
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    void markIdle() {
+        idleSince = System.currentTimeMillis();
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+            // IOException does not matter at this point
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package proxy.HTTPProxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared pool of idle keep-alive connections to origin servers, keyed by the server address and port.
+ * <p>
+ * HTTPHandler borrows a connection instead of dialing and returns it once the client is done with it, so clients
+ * that talk to the same origins do not pay a TCP handshake each time.
+ */
+public final class UpstreamPool {
+    private static UpstreamPool poolInstance;
+    private static final Object instanceLock = new Object();
+
+    private static final int MAX_IDLE_PER_HOST = 8;
+    private static final int MAX_IDLE_TOTAL = 512;
+    private static final long IDLE_TIMEOUT = 30_000; // ms
+    private static final long EVICTION_INTERVAL = 5_000; // ms
+
+    private final ConcurrentHashMap<String, ConcurrentLinkedDeque<UpstreamConnection>> idleConnections =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public static UpstreamPool getPool() {
+        UpstreamPool obj = poolInstance;
+        if (obj == null) {
+            synchronized (instanceLock) {
+                // While a thread was waiting for this lock another thread might have initialized it
+                obj = poolInstance;
+                if (obj == null) {
+                    obj = new UpstreamPool();
+                    poolInstance = obj;
+                }
+            }
+        }
+        return obj;
+    }
+
+    private UpstreamPool() {
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "upstream-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private static String poolKey(InetAddress address, int port) {
+        return address.getHostAddress() + ":" + port;
+    }
+
+    /**
+     * Returns an idle connection to the server if a live one is pooled, otherwise dials a new one.
+     *
+     * @param   address the server address
+     * @param   port    the server port
+     * @return  a connection that is owned by the caller until it is released
+     * @throws  IOException If connecting to the server fails
+     */
+    UpstreamConnection borrow(InetAddress address, int port) throws IOException {
+        String key = poolKey(address, port);
+        ConcurrentLinkedDeque<UpstreamConnection> idle = idleConnections.get(key);
+        if (idle != null) {
+            UpstreamConnection connection;
+            // Most recently used connection first, it is the least likely to be closed by the server
+            while ((connection = idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                if (isReusable(connection)) {
+                    hits.increment();
+                    return connection;
+                }
+                evictions.increment();
+                connection.close();
+            }
+        }
+
+        misses.increment();
+        Socket socket = new Socket(address, port);
+        // Requests are written in whole pieces
+        socket.setTcpNoDelay(true);
+        return new UpstreamConnection(key, address, socket);
+    }
+
+    /**
+     * Parks the connection for reuse, or closes it if the pool is full.
+     * Only connections that have finished their last response must be released.
+     *
+     * @param   connection  the connection to release
+     */
+    void release(UpstreamConnection connection) {
+        if (connection.getSocket().isClosed() || connection.getSocket().isInputShutdown()) {
+            return;
+        }
+
+        ConcurrentLinkedDeque<UpstreamConnection> idle =
+                idleConnections.computeIfAbsent(connection.getKey(), k -> new ConcurrentLinkedDeque<>());
+        if (idle.size() >= MAX_IDLE_PER_HOST) {
+            connection.close();
+            return;
+        }
+        if (idleCount.incrementAndGet() > MAX_IDLE_TOTAL) {
+            idleCount.decrementAndGet();
+            connection.close();
+            return;
+        }
+        connection.markIdle();
+        idle.offerFirst(connection);
+    }
+
+    // An idle connection must not have expired and the server must not have sent anything or closed it
+    private boolean isReusable(UpstreamConnection connection) {
+        if (System.currentTimeMillis() - connection.getIdleSince() > IDLE_TIMEOUT) {
+            return false;
+        }
+
+        Socket socket = connection.getSocket();
+        if (socket.isClosed() || socket.isInputShutdown()) {
+            return false;
+        }
+
+        try {
+            int previousTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                // Either the end of stream or unexpected data, both make the connection unusable
+                connection.getInput().read();
+                return false;
+            } catch (SocketTimeoutException ex) {
+                // Nothing to read, the connection is alive
+                socket.setSoTimeout(previousTimeout);
+                return true;
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (ConcurrentLinkedDeque<UpstreamConnection> idle : idleConnections.values()) {
+            Iterator<UpstreamConnection> oldestFirst = idle.descendingIterator();
+            while (oldestFirst.hasNext()) {
+                UpstreamConnection connection = oldestFirst.next();
+                if (now - connection.getIdleSince() <= IDLE_TIMEOUT && !connection.getSocket().isClosed()) {
+                    break;
+                }
+                // Only the thread that manages to remove it closes the connection
+                if (idle.removeLastOccurrence(connection)) {
+                    idleCount.decrementAndGet();
+                    evictions.increment();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public String getStats() {
+        return "Upstream pool: " + getHits() + " hits, " + getMisses() + " misses, " + getEvictions()
+                + " evictions, " + getIdleCount() + " idle connections";
+    }
+}
@@ -0,0 +1,101 @@
+package proxy.HTTPSProxy;
+
+import proxy.utils.VirtualThreads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relays both directions of a tunnel independently, server to client on a paired (virtual) thread and client to
+ * server on the calling thread, so a burst in one direction never waits for the other one to time out.
+ */
+final class DuplexPump {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Socket clientSocket;
+    private final InputStream clientIn;
+    private final OutputStream clientOut;
+    private final Socket serverSocket;
+    private final InputStream serverIn;
+    private final OutputStream serverOut;
+
+    // Counted as the bytes are relayed, an interrupted run returns while the other direction may still be copying
+    private final AtomicLong clientToServer = new AtomicLong();
+    private final AtomicLong serverToClient = new AtomicLong();
+
+    DuplexPump(Socket clientSocket, InputStream clientIn, OutputStream clientOut,
+               Socket serverSocket, InputStream serverIn, OutputStream serverOut) {
+        this.clientSocket = clientSocket;
+        this.clientIn = clientIn;
+        this.clientOut = clientOut;
+        this.serverSocket = serverSocket;
+        this.serverIn = serverIn;
+        this.serverOut = serverOut;
+    }
+
+    /**
+     * Relays the tunnel until both directions reached the end of stream or one of the peers failed.
+     * The sockets are left open, the caller is responsible for closing them.
+     */
+    void run() {
+        Thread downstream = VirtualThreads.start(() -> copy(serverIn, clientOut, clientSocket, serverToClient));
+        copy(clientIn, serverOut, serverSocket, clientToServer);
+        try {
+            downstream.join();
+        } catch (InterruptedException ex) {
+            // Stop the other direction as well
+            closeBoth();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getClientToServerBytes() {
+        return clientToServer.get();
+    }
+
+    long getServerToClientBytes() {
+        return serverToClient.get();
+    }
+
+    private void copy(InputStream source, OutputStream sink, Socket sinkSocket, AtomicLong total) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                int read;
+                try {
+                    read = source.read(buffer);
+                } catch (SocketTimeoutException ignore) {
+                    // Nothing to relay in this direction yet
+                    continue;
+                }
+                if (read == -1) {
+                    // Half close, pass the end of stream to the other peer and let the other direction finish
+                    sinkSocket.shutdownOutput();
+                    return;
+                }
+                sink.write(buffer, 0, read);
+                total.addAndGet(read);
+            }
+        } catch (IOException ex) {
+            // One of the peers is gone, close both sockets so the other direction stops as well
+            closeBoth();
+        }
+    }
+
+    private void closeBoth() {
+        try {
+            clientSocket.close();
+        } catch (IOException ignore) {
+            // IOException does not matter at this point
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException ignore) {
+            // IOException does not matter at this point
+        }
+    }
+}
@@ -1,19 +1,27 @@
 package proxy.HTTPSProxy;
 
 import proxy.AbstractProxyHandler;
+import proxy.utils.MalformedMessageException;
+import proxy.utils.MessageHead;
+import proxy.utils.MessageReader;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 
 public final class SSLHandler extends AbstractProxyHandler {
     // A buffer to store possible SNI Client Hello
     private final byte[] sharedBuffer = new byte[102400];
     int bufferIndex = 0;
 
-    public SSLHandler (Socket clientSocket) throws IOException {
+    private final TunnelMode tunnelMode;
+    // Set when the sockets are owned by the TunnelReactor and must not be closed here
+    private boolean handedOff = false;
+
+    public SSLHandler (Socket clientSocket, TunnelMode tunnelMode) throws IOException {
         super(clientSocket);
+        this.tunnelMode = tunnelMode;
     }
 
     @Override
@@ -31,38 +39,42 @@ public final class SSLHandler extends AbstractProxyHandler {
 
                 // If the client connected with the connect method no need to parse the contents again just relay information
                 if (!connectReq) {
+                    boolean connect = false;
                     try {
-                        bufferIndex += clientIn.read(sharedBuffer, 0, 7);
+                        // Only a peek, the bytes stay buffered for the Client Hello parser below
+                        connect = clientIn.startsWith("CONNECT ");
+                        if (!connect && clientIn.buffered() == 0) {
+                            // Client closed the connection
+                            return;
+                        }
                     } catch (SocketTimeoutException ignore) {
                     }
-                    if (bufferIndex == -1) {
-                        // Client closed the connection
-                        return;
-                    }
 
                     try {
                         String previousHost = null;
-                        // Check if CONNECT
-                        if (
-                                sharedBuffer[0] == 'C' && sharedBuffer[1] == 'O' && sharedBuffer[2] == 'N' && sharedBuffer[3] == 'N'
-                                        && sharedBuffer[4] == 'E' && sharedBuffer[5] == 'C' && sharedBuffer[6] == 'T'
-                        ) {
-                            String header = null;
+                        if (connect) {
+                            MessageHead header = null;
                             try {
                                 header = readHeaderFromClient();
-                            } catch (SocketTimeoutException ignore) {
+                            } catch (SocketTimeoutException | MalformedMessageException ignore) {
                             }
                             if (header == null) { // This is an error from the client side exit directly
                                 return;
                             }
-                            int firstSpace = header.indexOf(' ');
-                            int portDiv = header.indexOf(':');
+                            String target = header.getTarget();
+                            int portDiv = target.lastIndexOf(':');
 
                             if (hostAddr != null) {
                                 previousHost = hostAddr.getHostName();
                             }
 
-                            hostAddr = InetAddress.getByName(header.substring(firstSpace + 1, portDiv));
+                            String connectHost = portDiv < 0 ? target : target.substring(0, portDiv);
+                            if (storage.isBlocked(connectHost)) {
+                                // Domain is blocked drop the connection before resolving it
+                                clientLogs.addBlockedLog(clientSocket.getInetAddress(), connectHost);
+                                return;
+                            }
+                            hostAddr = resolver.resolve(connectHost);
                             if (previousHost == null || !previousHost.equals(hostAddr.getHostName())) {
                                 logHostname = true;
                             }
@@ -76,10 +88,15 @@ public final class SSLHandler extends AbstractProxyHandler {
                             } catch (SocketTimeoutException ignore) {
                             }
                             if (strHost != null) {
+                                if (storage.isBlocked(strHost)) {
+                                    // Domain is blocked drop the connection before resolving it
+                                    clientLogs.addBlockedLog(clientSocket.getInetAddress(), strHost);
+                                    return;
+                                }
                                 if (hostAddr != null) {
                                     previousHost = hostAddr.getHostName();
                                 }
-                                hostAddr = InetAddress.getByName(strHost);
+                                hostAddr = resolver.resolve(strHost);
                                 if (previousHost == null || !previousHost.equals(hostAddr.getHostName())) {
                                     logHostname = true;
                                 }
@@ -99,27 +116,17 @@ public final class SSLHandler extends AbstractProxyHandler {
                 if (hostAddr == null) {
                     // Host address not found
                     return;
-                } else if (storage.isBlocked(hostAddr)) {
-                    // Domain is blocked drop the connection
-                    clientLogs.addBlockedLog(clientSocket.getInetAddress(), hostAddr.getHostAddress());
-                    return;
                 } else if (logHostname) {
                     clientLogs.addLog(clientSocket.getInetAddress(), hostAddr.getHostName());
                 }
 
                 // Connect to the server
                 if (serverSocket == null) {
-                    serverSocket = new Socket(hostAddr, 443);
-                    serverSocket.setSoTimeout(SERVER_TIMEOUT);
-                    serverIn = new DataInputStream(serverSocket.getInputStream());
-                    serverOut = new DataOutputStream(serverSocket.getOutputStream());
+                    connectToServer(hostAddr);
                 } else if (serverSocket.getInetAddress() != hostAddr) {
                     // If new connection from the server port has been requested initiate a new server connection
                     serverSocket.close();
-                    serverSocket = new Socket(hostAddr, 443);
-                    serverSocket.setSoTimeout(SERVER_TIMEOUT);
-                    serverIn = new DataInputStream(serverSocket.getInputStream());
-                    serverOut = new DataOutputStream(serverSocket.getOutputStream());
+                    connectToServer(hostAddr);
                 }
 
                 // Return 200 OK to the client
@@ -133,6 +140,25 @@ public final class SSLHandler extends AbstractProxyHandler {
                     serverOut.write(sharedBuffer, 0, bufferIndex);
                 }
 
+                // Let the reactor relay the rest of the tunnel and free this thread
+                if (tunnelMode == TunnelMode.REACTOR && clientSocket.getChannel() != null) {
+                    // The reactor reads the channel, bytes the client sent right after CONNECT are still buffered
+                    clientIn.transferBuffered(serverOut);
+                    TunnelReactor.getReactor().register(
+                            clientSocket.getChannel(), serverSocket.getChannel(), hostAddr.getHostName());
+                    handedOff = true;
+                    return;
+                }
+
+                // Relay both directions independently until the tunnel is closed
+                if (tunnelMode == TunnelMode.DUPLEX) {
+                    DuplexPump pump = new DuplexPump(clientSocket, clientIn, clientOut, serverSocket, serverIn, serverOut);
+                    pump.run();
+                    clientLogs.addVerboseLog("HTTPS tunnel for " + hostAddr.getHostName() + " sent "
+                            + pump.getClientToServerBytes() + " bytes, received " + pump.getServerToClientBytes() + " bytes");
+                    return;
+                }
+
                 try {
                     long bytesRead = clientIn.transferTo(serverOut);
                     if (bytesRead == -1) {
@@ -159,61 +185,60 @@ public final class SSLHandler extends AbstractProxyHandler {
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            String log = "Closing HTTPS connection";
-            if (hostAddr != null) {
-                log += " for " + hostAddr.getHostName();
-            }
-            clientLogs.addVerboseLog(log);
-            try {
-                clientSocket.close();
-                if (serverSocket != null) {
-                    serverSocket.close();
+            // Sockets handed over to the reactor are closed by the reactor
+            if (!handedOff) {
+                String log = "Closing HTTPS connection";
+                if (hostAddr != null) {
+                    log += " for " + hostAddr.getHostName();
+                }
+                clientLogs.addVerboseLog(log);
+                try {
+                    clientSocket.close();
+                    if (serverSocket != null) {
+                        serverSocket.close();
+                    }
+                } catch (IOException e) {
+                    clientLogs.addVerboseLog("Error while closing the HTTPS connection");
                 }
-            } catch (IOException e) {
-                clientLogs.addVerboseLog("Error while closing the HTTPS connection");
             }
         }
     }
 
-    @Override
-    protected String readHeaderFromClient() throws IOException, ArrayIndexOutOfBoundsException {
-        int temp;
-        do {
-            // readByte throws IOException instead of writing -1 to array so, I use this one
-            temp = clientIn.read();
-            if (temp == -1) {
-                throw new SocketException("Client Disconnected");
-            }
-            sharedBuffer[bufferIndex++] = (byte) temp;
-        } while (sharedBuffer[bufferIndex - 1] != '\n' || sharedBuffer[bufferIndex - 2] != '\r'
-                || sharedBuffer[bufferIndex - 3] != '\n' || sharedBuffer[bufferIndex - 4] != '\r');
+    private void connectToServer(InetAddress hostAddr) throws IOException {
+        // Connect through a channel so the tunnel can be handed over to the reactor later
+        SocketChannel serverChannel = SocketChannel.open(new InetSocketAddress(hostAddr, 443));
+        serverSocket = serverChannel.socket();
+        serverSocket.setSoTimeout(SERVER_TIMEOUT);
+        serverIn = new MessageReader(serverSocket.getInputStream());
+        serverOut = new DataOutputStream(serverSocket.getOutputStream());
+    }
 
-        return new String(sharedBuffer, 0, bufferIndex);
+    @Override
+    protected MessageHead readHeaderFromClient() throws IOException, ArrayIndexOutOfBoundsException {
+        MessageHead head = clientIn.readHead();
+        if (head == null) {
+            throw new SocketException("Client Disconnected");
+        }
+        return head;
     }
 
     private String readSNI() throws IOException {
-        if (bufferIndex == 0) {
-            bufferIndex += clientIn.read(sharedBuffer, bufferIndex, 1);
-            if (bufferIndex == 0) {
-                return null;
-            }
+        bufferIndex += clientIn.read(sharedBuffer, bufferIndex, 1);
+        if (bufferIndex <= 0) {
+            bufferIndex = 0;
+            return null;
+        }
 
-            if (sharedBuffer[bufferIndex - 1] != (byte) 0x16) {
-                return null;
-            }
+        if (sharedBuffer[bufferIndex - 1] != (byte) 0x16) {
+            return null;
+        }
 
-            bufferIndex += clientIn.read(sharedBuffer, bufferIndex, 5);
+        bufferIndex += clientIn.read(sharedBuffer, bufferIndex, 5);
 
-            if (sharedBuffer[bufferIndex - 1] != (byte) 0x01) {
-                return null;
-            }
-            bufferIndex += clientIn.read(sharedBuffer, bufferIndex, 38);
-        } else {
-            if (sharedBuffer[0] != (byte) 0x16 || sharedBuffer[5] != (byte) 0x01) {
-                return null;
-            }
-            bufferIndex += clientIn.read(sharedBuffer, bufferIndex, 37);
+        if (sharedBuffer[bufferIndex - 1] != (byte) 0x01) {
+            return null;
         }
+        bufferIndex += clientIn.read(sharedBuffer, bufferIndex, 38);
         // Variable to store the current fields length
         int currentLength;
 
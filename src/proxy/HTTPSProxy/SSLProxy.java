@@ -6,22 +6,36 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class SSLProxy extends AbstractProxyListener {
+    private volatile TunnelMode tunnelMode = TunnelMode.fromProperty();
+
     public SSLProxy (int port) throws IOException {
         super(port);
     }
 
+    /**
+     * Changes how the tunnels relay data, takes effect for the connections accepted after the call.
+     *
+     * @param   mode    the new tunnel mode
+     */
+    public void setTunnelMode(TunnelMode mode) {
+        tunnelMode = mode;
+    }
+
+    public TunnelMode getTunnelMode() {
+        return tunnelMode;
+    }
+
     @Override
     public void run() {
-        ExecutorService executorThreads = Executors.newFixedThreadPool(SERVER_THREADS);
+        ExecutorService executorThreads = createExecutor();
         try {
             while (serverOn) {
                 Socket clientConnection = serverListener.accept();
                 try {
-                    executorThreads.execute(new SSLHandler(clientConnection));
+                    executorThreads.execute(new SSLHandler(clientConnection, tunnelMode));
                 }
                 catch (IOException ex) {
                     logger.addVerboseLog("Client HTTPS connection failed");
@@ -0,0 +1,26 @@
+package proxy.HTTPSProxy;
+
+/**
+ * How an HTTPS tunnel relays data after the SNI/CONNECT preamble.
+ */
+public enum TunnelMode {
+    // The handler thread alternates between both directions, switching on read timeouts
+    PING_PONG,
+    // The tunnel is handed over to the selector based TunnelReactor
+    REACTOR,
+    // Each direction is copied independently by the DuplexPump
+    DUPLEX;
+
+    // Mode can be selected with -Dproxy.tunnelMode=REACTOR
+    static TunnelMode fromProperty() {
+        String mode = System.getProperty("proxy.tunnelMode");
+        if (mode != null) {
+            try {
+                return valueOf(mode.trim().toUpperCase());
+            } catch (IllegalArgumentException ignore) {
+                // Unknown mode use the default one
+            }
+        }
+        return PING_PONG;
+    }
+}
@@ -0,0 +1,243 @@
+package proxy.HTTPSProxy;
+
+import proxy.utils.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Relays HTTPS tunnels with selector event loops, one loop per core.
+ * <p>
+ * Both directions of a tunnel are forwarded as soon as bytes are readable, so a tunnel never waits for a read
+ * timeout to change direction and a few threads can serve every open tunnel.
+ */
+public final class TunnelReactor {
+    private static TunnelReactor reactorInstance;
+    private static final Object instanceLock = new Object();
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final Logger logger = Logger.getLogger();
+
+    public static TunnelReactor getReactor() throws IOException {
+        TunnelReactor obj = reactorInstance;
+        if (obj == null) {
+            synchronized (instanceLock) {
+                // While a thread was waiting for this lock another thread might have initialized it
+                obj = reactorInstance;
+                if (obj == null) {
+                    obj = new TunnelReactor();
+                    reactorInstance = obj;
+                }
+            }
+        }
+        return obj;
+    }
+
+    private TunnelReactor() throws IOException {
+        loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread loopThread = new Thread(loops[i], "tunnel-reactor-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+    }
+
+    /**
+     * Hands an established tunnel over to one of the event loops. From this point on the reactor owns both
+     * channels and closes them when the tunnel ends.
+     *
+     * @param   client  the channel connected to the client
+     * @param   server  the channel connected to the server
+     * @param   host    the hostname of the server used for logging
+     * @throws  IOException If the channels cannot be switched to non-blocking mode
+     */
+    public void register(SocketChannel client, SocketChannel server, String host) throws IOException {
+        client.configureBlocking(false);
+        server.configureBlocking(false);
+        loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(new Tunnel(client, server, host));
+    }
+
+    // One direction of a tunnel
+    private static final class Relay {
+        private final SocketChannel source;
+        private final SocketChannel sink;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private boolean sourceClosed = false;
+        private boolean finished = false;
+        private long bytes = 0;
+
+        private Relay(SocketChannel source, SocketChannel sink) {
+            this.source = source;
+            this.sink = sink;
+        }
+
+        // Buffer is always kept in fill mode, position is the amount of data waiting for the sink
+        private boolean hasPending() {
+            return buffer.position() > 0;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            sink.write(buffer);
+            buffer.compact();
+        }
+
+        private void pump() throws IOException {
+            if (hasPending()) {
+                flush();
+                if (hasPending()) {
+                    // Sink is still full, wait for it to become writable
+                    return;
+                }
+            }
+
+            if (!sourceClosed) {
+                int read = source.read(buffer);
+                if (read == -1) {
+                    sourceClosed = true;
+                } else if (read > 0) {
+                    bytes += read;
+                    flush();
+                }
+            }
+
+            if (sourceClosed && !hasPending() && !finished) {
+                // Half close, pass the end of stream to the other peer
+                sink.shutdownOutput();
+                finished = true;
+            }
+        }
+
+        private boolean wantsRead() {
+            return !sourceClosed && !hasPending();
+        }
+    }
+
+    private final class Tunnel {
+        private final SocketChannel client;
+        private final SocketChannel server;
+        private final String host;
+        private final Relay upstream;
+        private final Relay downstream;
+        private SelectionKey clientKey;
+        private SelectionKey serverKey;
+
+        private Tunnel(SocketChannel client, SocketChannel server, String host) {
+            this.client = client;
+            this.server = server;
+            this.host = host;
+            upstream = new Relay(client, server);
+            downstream = new Relay(server, client);
+        }
+
+        private void handle(SelectionKey key) throws IOException {
+            if (key.channel() == client) {
+                if (key.isReadable()) {
+                    upstream.pump();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    downstream.pump();
+                }
+            } else {
+                if (key.isReadable()) {
+                    downstream.pump();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    upstream.pump();
+                }
+            }
+
+            if (upstream.finished && downstream.finished) {
+                close();
+            } else {
+                updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            clientKey.interestOps((upstream.wantsRead() ? SelectionKey.OP_READ : 0)
+                    | (downstream.hasPending() ? SelectionKey.OP_WRITE : 0));
+            serverKey.interestOps((downstream.wantsRead() ? SelectionKey.OP_READ : 0)
+                    | (upstream.hasPending() ? SelectionKey.OP_WRITE : 0));
+        }
+
+        private void close() {
+            logger.addVerboseLog("Closing HTTPS connection for " + host + ", sent " + upstream.bytes
+                    + " bytes, received " + downstream.bytes + " bytes");
+            try {
+                client.close();
+            } catch (IOException ignore) {
+                // IOException does not matter at this point
+            }
+            try {
+                server.close();
+            } catch (IOException ignore) {
+                // IOException does not matter at this point
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Tunnel> pending = new ConcurrentLinkedQueue<>();
+
+        private EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        private void register(Tunnel tunnel) {
+            pending.add(tunnel);
+            selector.wakeup();
+        }
+
+        private void registerPending() {
+            Tunnel tunnel;
+            while ((tunnel = pending.poll()) != null) {
+                try {
+                    tunnel.clientKey = tunnel.client.register(selector, SelectionKey.OP_READ, tunnel);
+                    tunnel.serverKey = tunnel.server.register(selector, SelectionKey.OP_READ, tunnel);
+                } catch (IOException ex) {
+                    tunnel.close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    selector.select();
+                } catch (IOException ex) {
+                    logger.addVerboseLog("Tunnel reactor selector failed: " + ex);
+                    return;
+                }
+                registerPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Tunnel tunnel = (Tunnel) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            tunnel.handle(key);
+                        }
+                    } catch (IOException ex) {
+                        // Connection closed by one of the peers
+                        tunnel.close();
+                    }
+                }
+            }
+        }
+    }
+}
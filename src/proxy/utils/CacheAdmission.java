@@ -0,0 +1,27 @@
+package proxy.utils;
+
+/**
+ * Decides which cacheable responses are worth writing to the disk cache. ProxyStorage asks it before a response
+ * is cached and counts its decisions.
+ */
+public interface CacheAdmission {
+    /**
+     * Called for every cacheable request, hit or miss, so the policy can track popularity.
+     *
+     * @param   key the key of the request
+     */
+    void recordRequest(CacheKey key);
+
+    /**
+     * @param   key             the key of the response
+     * @param   contentLength   the declared body length, -1 if it is not known
+     * @param   contentType     the media type of the response, null if it has none
+     * @return  true if the response should be cached
+     */
+    boolean admit(CacheKey key, long contentLength, String contentType);
+
+    /**
+     * @return  the largest body that is cached, longer bodies are dropped while they are written
+     */
+    long getMaxObjectSize();
+}
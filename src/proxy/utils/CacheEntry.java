@@ -0,0 +1,224 @@
+package proxy.utils;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Cache index value of a cached response, the metadata record of the response.
+ * <p>
+ * The status line and headers are kept here and the cache file only holds the body, so HEAD requests, freshness checks
+ * and 304 answers never read the file. The header, the body length and its checksum are fixed when the response is
+ * stored. The validity is replaced whenever the origin confirms the cached copy. The access time and hit count change
+ * on every cache hit and are only kept in memory, they reach the disk with the next compaction of the index journal.
+ */
+public class CacheEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How long a response may be served without the origin, all times in ms.
+     */
+    public static final class Validity implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long birth;
+        private final long lifetime;
+        private final long staleWhileRevalidate;
+        private final long staleIfError;
+        // Set by must-revalidate and the directives that imply it, the windows are zero then
+        private final boolean mustRevalidate;
+
+        /**
+         * @param   birth                   the time the origin generated the response, the response time minus
+         *                                  its age
+         * @param   lifetime                how long the response is fresh from its birth
+         * @param   staleWhileRevalidate    how long after that it may be served while it is revalidated
+         * @param   staleIfError            how long after that it may be served when the origin fails
+         * @param   mustRevalidate          true if the response must never be served stale
+         */
+        public Validity(long birth, long lifetime, long staleWhileRevalidate, long staleIfError,
+                        boolean mustRevalidate) {
+            this.birth = birth;
+            this.lifetime = lifetime;
+            this.staleWhileRevalidate = staleWhileRevalidate;
+            this.staleIfError = staleIfError;
+            this.mustRevalidate = mustRevalidate;
+        }
+
+        public long getLifetime() {
+            return lifetime;
+        }
+
+        public long getStaleWhileRevalidate() {
+            return staleWhileRevalidate;
+        }
+
+        public long getStaleIfError() {
+            return staleIfError;
+        }
+
+        public boolean isMustRevalidate() {
+            return mustRevalidate;
+        }
+    }
+
+    private final String date;
+    private final String etag;
+    // Status line and headers without Age, ending with the blank line
+    private final byte[] header;
+    private final long size;
+    // CRC32 of the body
+    private final long checksum;
+    // When the body was stored, copies with a new validity keep it
+    private final long stored;
+    private final Validity validity;
+    private volatile long lastAccess;
+    private volatile int hits;
+
+    /**
+     * Describes a response before it is stored, the cache fills in the size.
+     *
+     * @param   date            the Last-Modified date of the response, null if it has none
+     * @param   etag            the entity tag of the response, null if it has none
+     * @param   header          the status line and headers including the blank line, not changed afterwards
+     * @param   validity        the freshness of the response
+     */
+    public CacheEntry(String date, String etag, byte[] header, Validity validity) {
+        this(date, etag, header, 0, 0, validity, System.currentTimeMillis(), System.currentTimeMillis());
+    }
+
+    private CacheEntry(String date, String etag, byte[] header, long size, long checksum, Validity validity,
+                       long stored, long lastAccess) {
+        this.date = date;
+        this.etag = etag;
+        this.header = header;
+        this.size = size;
+        this.checksum = checksum;
+        this.validity = validity;
+        this.stored = stored;
+        this.lastAccess = lastAccess;
+    }
+
+    // The stored copy of a described response
+    CacheEntry stored(long size, long checksum) {
+        return new CacheEntry(date, etag, header, size, checksum, validity, System.currentTimeMillis(),
+                System.currentTimeMillis());
+    }
+
+    /**
+     * @param   validity    the freshness given by the confirming response
+     * @return  a copy of the entry with the new validity
+     */
+    public CacheEntry revalidated(Validity validity) {
+        CacheEntry entry = new CacheEntry(date, etag, header, size, checksum, validity, stored, lastAccess);
+        entry.hits = hits;
+        return entry;
+    }
+
+    /**
+     * @param   other   another entry of the same URL
+     * @return  true if both entries describe the same stored response, even with different validity
+     */
+    public boolean isSameResponse(CacheEntry other) {
+        return other != null && stored == other.stored && size == other.size && checksum == other.checksum;
+    }
+
+    /**
+     * @return  the Last-Modified date of the cached response, null if it has none
+     */
+    public String getDate() {
+        return date;
+    }
+
+    /**
+     * @return  the entity tag of the cached response including its quotes and weak prefix, null if it has none
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return  true if the entry has a validator the origin can confirm it with
+     */
+    public boolean hasValidator() {
+        return date != null || etag != null;
+    }
+
+    /**
+     * @return  the status line and headers of the response without Age, ending with the blank line
+     */
+    public ByteBuffer getHeader() {
+        return ByteBuffer.wrap(header).asReadOnlyBuffer();
+    }
+
+    // Not copied, the array is never changed
+    byte[] getHeaderBytes() {
+        return header;
+    }
+
+    // Entries of indexes written before the headers were kept in the index have none
+    boolean hasHeader() {
+        return header != null;
+    }
+
+    /**
+     * @return  the length of the body in the cache file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return  the CRC32 of the body
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public Validity getValidity() {
+        return validity;
+    }
+
+    /**
+     * @return  the current age of the response in ms
+     */
+    public long getAge() {
+        return Math.max(0, System.currentTimeMillis() - validity.birth);
+    }
+
+    public boolean isFresh() {
+        return getAge() < validity.lifetime;
+    }
+
+    /**
+     * @return  true if the stale response may be served while it is revalidated in the background
+     */
+    public boolean isUsableWhileRevalidating() {
+        return getAge() < validity.lifetime + validity.staleWhileRevalidate;
+    }
+
+    /**
+     * @return  true if the stale response may be served because the origin cannot be reached or failed
+     */
+    public boolean isUsableOnError() {
+        return getAge() < validity.lifetime + validity.staleIfError;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    // Racy increments are fine, the values are only used to rank entries for eviction
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+        hits++;
+    }
+
+    // Halve the hit count so old popularity fades out
+    void age() {
+        hits >>>= 1;
+    }
+}
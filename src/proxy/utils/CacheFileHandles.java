@@ -0,0 +1,159 @@
+package proxy.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of open read only channels to cache files, so hot objects are not reopened on every hit.
+ * <p>
+ * Handles are reference counted. A handle dropped from the cache, or invalidated because its file was replaced or
+ * evicted, is closed once the last reader releases it. Readers must only use positional reads and transfers since
+ * the channel is shared.
+ */
+public class CacheFileHandles {
+    public final class Handle implements Closeable {
+        private final FileChannel channel;
+        private int references = 0;
+        private boolean retired = false;
+
+        private Handle(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    // Threads opening the file of a key outside of the lock, and whether the key was invalidated meanwhile
+    private static final class Opening {
+        private int threads = 0;
+        private boolean invalidated = false;
+    }
+
+    private final int maxOpen;
+    // Access ordered, the eldest handle is the least recently used one
+    private final LinkedHashMap<String, Handle> handles;
+    private final HashMap<String, Opening> opening = new HashMap<>();
+
+    public CacheFileHandles(int maxOpen) {
+        this.maxOpen = maxOpen;
+        handles = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Handle> eldest) {
+                if (size() > CacheFileHandles.this.maxOpen) {
+                    retire(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param   key     the cache key
+     * @param   file    the cache file, only opened if there is no open handle for the key
+     * @return  the handle, it must be closed after use
+     * @throws  IOException If the file cannot be opened
+     */
+    public Handle acquire(String key, File file) throws IOException {
+        Opening pending;
+        synchronized (this) {
+            Handle handle = handles.get(key);
+            if (handle != null) {
+                handle.references++;
+                return handle;
+            }
+            pending = opening.computeIfAbsent(key, k -> new Opening());
+            pending.threads++;
+        }
+
+        // Open outside of the lock, another thread might open the same file in the meantime
+        Handle opened;
+        try {
+            opened = new Handle(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        } catch (IOException ex) {
+            synchronized (this) {
+                finishOpening(key, pending);
+            }
+            throw ex;
+        }
+        synchronized (this) {
+            finishOpening(key, pending);
+            if (pending.invalidated) {
+                // The file may have been replaced after it was opened, the handle is not shared and is closed when
+                // this reader releases it
+                opened.retired = true;
+                opened.references++;
+                return opened;
+            }
+            Handle handle = handles.putIfAbsent(key, opened);
+            if (handle == null) {
+                handle = opened;
+            } else {
+                opened.channel.close();
+            }
+            handle.references++;
+            return handle;
+        }
+    }
+
+    /**
+     * Drops the handle of a replaced or deleted file, readers that already have it can finish.
+     *
+     * @param   key the cache key
+     */
+    public synchronized void invalidate(String key) {
+        Opening pending = opening.get(key);
+        if (pending != null) {
+            pending.invalidated = true;
+        }
+        Handle handle = handles.remove(key);
+        if (handle != null) {
+            retire(handle);
+        }
+    }
+
+    public synchronized int getOpenCount() {
+        return handles.size();
+    }
+
+    private void finishOpening(String key, Opening pending) {
+        if (--pending.threads == 0) {
+            opening.remove(key, pending);
+        }
+    }
+
+    private synchronized void release(Handle handle) {
+        handle.references--;
+        if (handle.retired && handle.references == 0) {
+            closeChannel(handle);
+        }
+    }
+
+    private void retire(Handle handle) {
+        handle.retired = true;
+        if (handle.references == 0) {
+            closeChannel(handle);
+        }
+    }
+
+    private static void closeChannel(Handle handle) {
+        try {
+            handle.channel.close();
+        } catch (IOException ignore) {
+            // Read only channel, nothing is lost
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package proxy.utils;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Locale;
+
+/**
+ * Identifies a cached response by its normalized URL and the request headers responses may vary on.
+ * <p>
+ * The key is hashed once when it is created. The digest is both the cache index key and the name of the cache
+ * file, so lookups do not encode the URL again. Only the request headers listed in the proxy.cache.varyHeaders
+ * property (Accept-Encoding by default) become part of the key. Responses that vary on any other header are not
+ * stored, see {@link #coversVary(String)}.
+ */
+public final class CacheKey {
+    private static final HeaderName[] VARY_HEADERS = varyHeaders(System.getProperty("proxy.cache.varyHeaders",
+            "Accept-Encoding"));
+    // 128 bits of SHA-256, collisions are not a practical concern at cache sizes
+    private static final int DIGEST_BYTES = 16;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final URL url;
+    private final String normalized;
+    private final String digest;
+
+    private CacheKey(URL url, String normalized, String digest) {
+        this.url = url;
+        this.normalized = normalized;
+        this.digest = digest;
+    }
+
+    /**
+     * @param   url             the requested URL
+     * @param   requestHeaders  the headers of the request, only the varied ones are used
+     * @return  the key of the response to the request
+     */
+    public static CacheKey of(URL url, MessageHead requestHeaders) {
+        String path = url.getPath().isEmpty() ? "/" : url.getPath();
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        StringBuilder normalized = new StringBuilder(url.getProtocol().toLowerCase(Locale.ROOT)).append("://")
+                .append(url.getHost().toLowerCase(Locale.ROOT)).append(':').append(port).append(path);
+        if (url.getQuery() != null) {
+            normalized.append('?').append(url.getQuery());
+        }
+
+        StringBuilder keyed = new StringBuilder(normalized);
+        for (HeaderName name : VARY_HEADERS) {
+            keyed.append('\n').append(name.toString().toLowerCase(Locale.ROOT)).append(':')
+                    .append(normalizeValue(name, requestHeaders.getCombined(name)));
+        }
+        return new CacheKey(url, normalized.toString(), hash(keyed.toString()));
+    }
+
+    // Equivalent header values give the same key, list values like Accept-Encoding are also sorted
+    private static String normalizeValue(HeaderName name, String value) {
+        if (value == null) {
+            return "";
+        }
+        if (!name.equals(HeaderName.ACCEPT_ENCODING)) {
+            return value.trim().replaceAll("\\s+", " ");
+        }
+        String[] codings = value.toLowerCase(Locale.ROOT).replaceAll("\\s+", "").split(",");
+        Arrays.sort(codings);
+        return String.join(",", codings);
+    }
+
+    private static HeaderName[] varyHeaders(String names) {
+        String[] split = names.split("\\s*,\\s*");
+        HeaderName[] varyHeaders = new HeaderName[split.length];
+        for (int i = 0; i < split.length; i++) {
+            varyHeaders[i] = HeaderName.of(split[i]);
+        }
+        return varyHeaders;
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HEX.formatHex(digest, 0, DIGEST_BYTES);
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform has to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param   vary    the Vary header of a response, may be null
+     * @return  true if every header the response varies on is part of the cache key
+     */
+    public static boolean coversVary(String vary) {
+        if (vary == null) {
+            return true;
+        }
+        for (String name : vary.split(",")) {
+            String varied = name.trim();
+            if (varied.isEmpty()) {
+                continue;
+            }
+            boolean covered = false;
+            for (HeaderName keyed : VARY_HEADERS) {
+                if (keyed.toString().equalsIgnoreCase(varied)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Keys written before the digests were the URL encoded host and path
+    static boolean isDigest(String key) {
+        if (key.length() != DIGEST_BYTES * 2) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (Character.digit(key.charAt(i), 16) < 0 || Character.isUpperCase(key.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * @return  the fixed width hex digest used as the index key and the cache file name
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CacheKey && digest.equals(((CacheKey) other).digest);
+    }
+
+    @Override
+    public int hashCode() {
+        return digest.hashCode();
+    }
+
+    // The URL part only, for the logs
+    @Override
+    public String toString() {
+        return normalized;
+    }
+}
@@ -0,0 +1,252 @@
+package proxy.utils;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind queue of a cache disk, so clients never wait for the disk while a response is being cached.
+ * <p>
+ * The request thread copies every chunk into a pooled buffer and queues it, a single writer thread writes the
+ * chunks to the cache file in order. The pool bounds the queue: when no buffer is free the disk is behind, the
+ * cached copy of the response is dropped and the client keeps streaming. Collapsed readers of a dropped copy get the
+ * rest of the body relayed in memory, only the cache loses it. Finishing is queued after the last chunk, so a response
+ * is only moved into the cache once all of it is on the disk.
+ */
+public class CacheWriteBehind {
+    // Queued finish and abort markers do not carry a buffer
+    private static final byte[] NO_DATA = new byte[0];
+
+    /**
+     * The write-behind of one cached response, only used by the request thread.
+     */
+    public final class Pipeline {
+        private final InFlightResponse target;
+        private final long maxBytes;
+        private final Runnable onComplete;
+        private final Runnable onFailure;
+        private boolean dropped = false;
+        private boolean finished = false;
+        // Body offset of the next byte
+        private long position = 0;
+        // Set by the writer thread after a disk error, the remaining chunks are skipped
+        private volatile boolean failed = false;
+
+        private Pipeline(InFlightResponse target, long maxBytes, Runnable onComplete, Runnable onFailure) {
+            this.target = target;
+            this.maxBytes = maxBytes;
+            this.onComplete = onComplete;
+            this.onFailure = onFailure;
+        }
+
+        /**
+         * Queues a copy of the bytes, never blocks. Once the cached copy is dropped the bytes are relayed to the
+         * collapsed readers instead.
+         *
+         * @return  false if the cached copy was dropped because the queue is full, the body is too large or the disk
+         *          failed
+         */
+        public boolean write(byte[] b, int off, int len) {
+            if (finished) {
+                return false;
+            }
+            if (!dropped && !failed) {
+                if (position + len > maxBytes) {
+                    // Bodies without a declared length are only found to be too large here
+                    drop(oversized);
+                }
+                while (!dropped && len > 0) {
+                    byte[] buffer = acquireBuffer();
+                    if (buffer == null) {
+                        // The disk is behind, give up on this copy instead of stalling the client
+                        drop(drops);
+                        break;
+                    }
+                    int length = Math.min(len, buffer.length);
+                    System.arraycopy(b, off, buffer, 0, length);
+                    enqueue(new Chunk(this, buffer, length, position));
+                    position += length;
+                    off += length;
+                    len -= length;
+                }
+                if (len == 0) {
+                    return true;
+                }
+            }
+            target.relay(position, b, off, len);
+            position += len;
+            return false;
+        }
+
+        private void drop(LongAdder reason) {
+            dropped = true;
+            reason.increment();
+            // The chunks already queued are still written, the readers follow the file up to them
+            target.dropCopy();
+            enqueue(new Chunk(this, NO_DATA, Chunk.ABORT, position));
+        }
+
+        /**
+         * Queues the end of the response, the cached copy is stored once all of it is written.
+         *
+         * @param   complete    false if the response is broken and must not be stored
+         */
+        public void finish(boolean complete) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            // The readers are done once they have the bytes, whether the copy is stored or not
+            target.endBody(complete, position);
+            if (!dropped) {
+                enqueue(new Chunk(this, NO_DATA, complete ? Chunk.COMPLETE : Chunk.ABORT, position));
+            }
+        }
+    }
+
+    private static final class Chunk {
+        private static final int COMPLETE = -1;
+        private static final int ABORT = -2;
+
+        private final Pipeline pipeline;
+        private final byte[] data;
+        // Number of bytes in data, or one of the markers
+        private final int length;
+        // Body offset of data
+        private final long position;
+
+        private Chunk(Pipeline pipeline, byte[] data, int length, long position) {
+            this.pipeline = pipeline;
+            this.data = data;
+            this.length = length;
+            this.position = position;
+        }
+    }
+
+    private final int chunkSize;
+    private final int maxBuffers;
+    private final ArrayBlockingQueue<byte[]> freeBuffers;
+    private final AtomicInteger allocatedBuffers = new AtomicInteger();
+    // Unbounded, the data chunks in it are bounded by the buffer pool
+    private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger queuedChunks = new AtomicInteger();
+    private final LongAdder writtenBytes = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param   name        the name of the writer thread
+     * @param   chunkSize   the size of a pooled buffer
+     * @param   maxBuffers  how many chunks may wait for the disk
+     */
+    public CacheWriteBehind(String name, int chunkSize, int maxBuffers) {
+        this.chunkSize = chunkSize;
+        this.maxBuffers = maxBuffers;
+        freeBuffers = new ArrayBlockingQueue<>(maxBuffers);
+        Thread writer = new Thread(this::writeChunks, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param   target      the cache file of the response
+     * @param   maxBytes    the body is dropped once it gets longer
+     * @param   onComplete  run on the writer thread once the whole response is written
+     * @param   onFailure   run on the writer thread if the response was dropped, broken or could not be written
+     * @return  the pipeline to write the body through
+     */
+    public Pipeline open(InFlightResponse target, long maxBytes, Runnable onComplete, Runnable onFailure) {
+        return new Pipeline(target, maxBytes, onComplete, onFailure);
+    }
+
+    // Buffers are allocated on demand up to the limit and reused afterwards
+    private byte[] acquireBuffer() {
+        byte[] buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocatedBuffers.incrementAndGet() > maxBuffers) {
+            allocatedBuffers.decrementAndGet();
+            return null;
+        }
+        return new byte[chunkSize];
+    }
+
+    private void enqueue(Chunk chunk) {
+        queuedChunks.incrementAndGet();
+        queue.add(chunk);
+    }
+
+    private void writeChunks() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            queuedChunks.decrementAndGet();
+            Pipeline pipeline = chunk.pipeline;
+            try {
+                if (chunk.length >= 0) {
+                    write(pipeline, chunk);
+                } else {
+                    finish(pipeline, chunk.length == Chunk.COMPLETE);
+                }
+            } catch (RuntimeException ex) {
+                // Keep the writer alive for the other responses
+                Logger.getLogger().addVerboseLog("Storing a cached response failed: " + ex);
+            } finally {
+                if (chunk.data != NO_DATA) {
+                    freeBuffers.offer(chunk.data);
+                }
+            }
+        }
+    }
+
+    private void write(Pipeline pipeline, Chunk chunk) {
+        if (!pipeline.failed) {
+            try {
+                pipeline.target.write(chunk.data, 0, chunk.length);
+                writtenBytes.add(chunk.length);
+                return;
+            } catch (IOException ex) {
+                fail(pipeline, ex);
+            }
+        }
+        // Not on the disk, the readers get it from memory
+        pipeline.target.relay(chunk.position, chunk.data, 0, chunk.length);
+    }
+
+    private void finish(Pipeline pipeline, boolean complete) {
+        try {
+            pipeline.target.close();
+        } catch (IOException ex) {
+            fail(pipeline, ex);
+        }
+        if (complete && !pipeline.failed) {
+            pipeline.onComplete.run();
+        } else {
+            pipeline.onFailure.run();
+        }
+    }
+
+    private void fail(Pipeline pipeline, IOException ex) {
+        if (!pipeline.failed) {
+            // Before the request thread sees the failure and starts relaying on its own
+            pipeline.target.dropCopy();
+            pipeline.failed = true;
+            failures.increment();
+            Logger.getLogger().addVerboseLog("Writing a cache file failed: " + ex.getMessage());
+        }
+    }
+
+    public String getStats() {
+        return "Cache write-behind: " + queuedChunks.get() + " queued chunks, " + writtenBytes.sum()
+                + " bytes written, " + drops.sum() + " responses dropped on a full queue, " + oversized.sum()
+                + " dropped as too large, " + failures.sum() + " disk failures";
+    }
+}
@@ -0,0 +1,273 @@
+package proxy.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Immutable, memory mapped set of domains for large imported blocklists.
+ * <p>
+ * Domains are stored reversed (moc.elpmaxe) and sorted in a single file that is mapped read only, so the set lives
+ * outside of the Java heap. A Bloom filter in front of the binary search answers most misses without touching the
+ * string table. Like DomainTrie a domain also matches all of its subdomains, and lookups do not allocate.
+ * <p>
+ * File layout: magic, entry count, Bloom filter word count, Bloom filter words, entry offsets, entry bytes.
+ */
+public final class CompactDomainSet {
+    private static final int MAGIC = 0x50424C31; // PBL1
+    private static final int HEADER_SIZE = 12;
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    private static final CompactDomainSet EMPTY = new CompactDomainSet(null, 0, 0, 0, 0);
+
+    private final ByteBuffer table;
+    private final int count;
+    private final int bloomWords;
+    private final int offsetsStart;
+    private final int dataStart;
+
+    private CompactDomainSet(ByteBuffer table, int count, int bloomWords, int offsetsStart, int dataStart) {
+        this.table = table;
+        this.count = count;
+        this.bloomWords = bloomWords;
+        this.offsetsStart = offsetsStart;
+        this.dataStart = dataStart;
+    }
+
+    public static CompactDomainSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Maps a file written by write().
+     *
+     * @param   file    the blocklist file
+     * @return  the set backed by the mapped file
+     * @throws  IOException If the file cannot be read or is not a blocklist file
+     */
+    public static CompactDomainSet load(File file) throws IOException {
+        ByteBuffer table;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.BIG_ENDIAN);
+        }
+        if (table.capacity() < HEADER_SIZE || table.getInt(0) != MAGIC) {
+            throw new IOException("Not a blocklist file: " + file);
+        }
+        int count = table.getInt(4);
+        int bloomWords = table.getInt(8);
+        int offsetsStart = HEADER_SIZE + bloomWords * Long.BYTES;
+        int dataStart = offsetsStart + (count + 1) * Integer.BYTES;
+        if (count < 0 || bloomWords <= 0 || dataStart > table.capacity()
+                || dataStart + table.getInt(offsetsStart + count * Integer.BYTES) > table.capacity()) {
+            throw new IOException("Broken blocklist file: " + file);
+        }
+        return new CompactDomainSet(table, count, bloomWords, offsetsStart, dataStart);
+    }
+
+    /**
+     * Parses a hosts file ("0.0.0.0 ads.example.com") or a plain list with one domain per line, and writes the
+     * domains in the compact format. Comments starting with # are ignored.
+     *
+     * @param   source  the list to import
+     * @param   target  the file to write
+     * @return  the number of distinct domains written
+     * @throws  IOException If an I/O error occurs
+     */
+    public static int importList(File source, File target) throws IOException {
+        ArrayList<String> reversed = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(source), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                String[] tokens = line.trim().split("\\s+");
+                // Hosts file lines start with the address the names are redirected to
+                int first = tokens.length > 1 && isAddress(tokens[0]) ? 1 : 0;
+                for (int i = first; i < tokens.length; i++) {
+                    String domain = normalize(tokens[i]);
+                    if (domain != null) {
+                        reversed.add(new StringBuilder(domain).reverse().toString());
+                    }
+                }
+            }
+        }
+
+        // Sorted reversed names keep every domain next to its subdomains and allow the binary search
+        Collections.sort(reversed);
+        int distinct = 0;
+        for (int i = 0; i < reversed.size(); i++) {
+            if (distinct == 0 || !reversed.get(i).equals(reversed.get(distinct - 1))) {
+                reversed.set(distinct++, reversed.get(i));
+            }
+        }
+        write(reversed.subList(0, distinct), target);
+        return distinct;
+    }
+
+    private static boolean isAddress(String token) {
+        if (token.indexOf(':') >= 0) { // IPv6
+            return true;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return !token.isEmpty();
+    }
+
+    // Lower case ASCII names only, hosts file placeholders are skipped
+    private static String normalize(String token) {
+        String domain = token.toLowerCase(Locale.ROOT);
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        if (domain.isEmpty() || domain.equals("localhost") || domain.equals("localhost.localdomain")
+                || domain.equals("broadcasthost") || domain.equals("local") || isAddress(domain)) {
+            return null;
+        }
+        for (int i = 0; i < domain.length(); i++) {
+            char c = domain.charAt(i);
+            if (c > 0x7F || c <= ' ') {
+                return null;
+            }
+        }
+        return domain;
+    }
+
+    private static void write(List<String> sortedReversed, File target) throws IOException {
+        int count = sortedReversed.size();
+        int bloomWords = Math.max(1, (int) (((long) count * BLOOM_BITS_PER_ENTRY + 63) / 64));
+        long[] bloom = new long[bloomWords];
+        long bloomBits = (long) bloomWords * 64;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            out.writeInt(bloomWords);
+
+            for (String domain : sortedReversed) {
+                long hash = 0xcbf29ce484222325L;
+                for (int i = 0; i < domain.length(); i++) {
+                    hash = step(hash, domain.charAt(i));
+                }
+                long second = mix(hash);
+                for (int k = 0; k < BLOOM_HASHES; k++) {
+                    long bit = Math.floorMod(hash + k * second, bloomBits);
+                    bloom[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            }
+            for (long word : bloom) {
+                out.writeLong(word);
+            }
+
+            int offset = 0;
+            out.writeInt(offset);
+            for (String domain : sortedReversed) {
+                offset += domain.length();
+                out.writeInt(offset);
+            }
+            for (String domain : sortedReversed) {
+                out.writeBytes(domain);
+            }
+        }
+    }
+
+    // FNV-1a step over one lower case character
+    private static long step(long hash, char c) {
+        return (hash ^ c) * 0x100000001b3L;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash | 1;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param   host    the requested hostname, case does not matter
+     * @return  true if the host or one of its parent domains is in the set
+     */
+    public boolean matches(String host) {
+        if (count == 0) {
+            return false;
+        }
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        // Walk the host from its last character, every label boundary is a candidate parent domain
+        long hash = 0xcbf29ce484222325L;
+        for (int length = 1; length <= end; length++) {
+            char c = Character.toLowerCase(host.charAt(end - length));
+            hash = step(hash, c);
+            boolean boundary = length == end || host.charAt(end - length - 1) == '.';
+            if (boundary && mightContain(hash) && contains(host, end, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mightContain(long hash) {
+        long bloomBits = (long) bloomWords * 64;
+        long second = mix(hash);
+        for (int k = 0; k < BLOOM_HASHES; k++) {
+            long bit = Math.floorMod(hash + k * second, bloomBits);
+            if ((table.getLong(HEADER_SIZE + (int) (bit >>> 6) * Long.BYTES) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Binary search for the last length characters of the host, reversed
+    private boolean contains(String host, int end, int length) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, host, end, length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int compare(int index, String host, int end, int length) {
+        int start = table.getInt(offsetsStart + index * Integer.BYTES);
+        int entryLength = table.getInt(offsetsStart + (index + 1) * Integer.BYTES) - start;
+        int common = Math.min(entryLength, length);
+        for (int i = 0; i < common; i++) {
+            int stored = table.get(dataStart + start + i) & 0xFF;
+            int requested = Character.toLowerCase(host.charAt(end - 1 - i));
+            if (stored != requested) {
+                return stored - requested;
+            }
+        }
+        return entryLength - length;
+    }
+}
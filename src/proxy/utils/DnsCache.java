@@ -0,0 +1,242 @@
+package proxy.utils;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Proxy level hostname resolver cache with positive and negative TTLs.
+ * <p>
+ * Hot names are refreshed in the background shortly before they expire so the handlers rarely wait for a lookup,
+ * and the positive entries are saved to ~/.proxy/dns_cache so a restarted proxy starts warm.
+ */
+public class DnsCache {
+    private static DnsCache cacheInstance;
+    private static final Object instanceLock = new Object();
+
+    private static final long POSITIVE_TTL = 60_000; // ms
+    private static final long NEGATIVE_TTL = 10_000; // ms
+    private static final long REFRESH_AHEAD = 10_000; // ms before expiry
+    private static final int HOT_HITS = 3; // Hits within a TTL to be refreshed ahead
+    private static final int MAX_ENTRIES = 10_000;
+    private static final long SNAPSHOT_INTERVAL = 5; // minutes
+
+    private final File snapshotFile;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher;
+    private final Logger logger = Logger.getLogger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    private static final class Entry {
+        // Null for negative entries
+        private final InetAddress address;
+        private final long expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private final AtomicInteger hits = new AtomicInteger();
+        private volatile long lastUsed;
+
+        private Entry(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    // Saved form of a positive entry
+    private static final class SnapshotEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final InetAddress address;
+        private final long expiresAt;
+
+        private SnapshotEntry(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public static DnsCache getCache() throws IOException {
+        DnsCache obj = cacheInstance;
+        if (obj == null) {
+            synchronized (instanceLock) {
+                // While a thread was waiting for this lock another thread might have initialized it
+                obj = cacheInstance;
+                if (obj == null) {
+                    obj = new DnsCache(ProxyStorage.getStorage().getConfigDir());
+                    cacheInstance = obj;
+                }
+            }
+        }
+        return obj;
+    }
+
+    private DnsCache(File configDir) throws IOException {
+        refresher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "dns-cache-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        snapshotFile = new File(configDir + File.separator + "dns_cache");
+        if (snapshotFile.exists()) {
+            loadSnapshot();
+        }
+
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                saveSnapshot();
+            } catch (IOException ex) {
+                logger.addVerboseLog("Saving the DNS cache snapshot failed");
+            }
+        }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Resolves the hostname using the cached answer if it has not expired.
+     *
+     * @param   host    the hostname to resolve
+     * @return  the address of the host
+     * @throws  UnknownHostException If the host cannot be resolved, negative answers are cached as well
+     */
+    public InetAddress resolve(String host) throws UnknownHostException {
+        String key = host.toLowerCase(Locale.ROOT);
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.expiresAt) {
+            hits.increment();
+            int entryHits = entry.hits.incrementAndGet();
+            entry.lastUsed = now;
+            // Refresh hot names before they expire so the next request does not wait for the lookup
+            if (entry.address != null && entry.expiresAt - now < REFRESH_AHEAD && entryHits >= HOT_HITS
+                    && entry.refreshing.compareAndSet(false, true)) {
+                refresher.execute(() -> refresh(key, entry));
+            }
+            if (entry.address == null) {
+                throw new UnknownHostException(host);
+            }
+            return entry.address;
+        }
+
+        misses.increment();
+        return lookup(key);
+    }
+
+    private InetAddress lookup(String key) throws UnknownHostException {
+        try {
+            InetAddress address = InetAddress.getByName(key);
+            store(key, new Entry(address, System.currentTimeMillis() + POSITIVE_TTL));
+            return address;
+        } catch (UnknownHostException ex) {
+            store(key, new Entry(null, System.currentTimeMillis() + NEGATIVE_TTL));
+            throw ex;
+        }
+    }
+
+    private void refresh(String key, Entry entry) {
+        refreshes.increment();
+        try {
+            InetAddress address = InetAddress.getByName(key);
+            store(key, new Entry(address, System.currentTimeMillis() + POSITIVE_TTL));
+        } catch (UnknownHostException ex) {
+            // A failed refresh keeps the positive answer until it expires, only real misses are cached as negative
+            entry.refreshing.set(false);
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        entries.put(key, entry);
+        if (entries.size() > MAX_ENTRIES) {
+            evict();
+        }
+    }
+
+    // Drop the expired entries first, then the least recently used ones until the cache is at 90% of its size
+    private synchronized void evict() {
+        if (entries.size() <= MAX_ENTRIES) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.expiresAt <= now);
+
+        int excess = entries.size() - MAX_ENTRIES * 9 / 10;
+        if (excess > 0) {
+            List<Map.Entry<String, Entry>> byLastUse = new ArrayList<>(entries.entrySet());
+            byLastUse.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+            for (int i = 0; i < excess; i++) {
+                entries.remove(byLastUse.get(i).getKey(), byLastUse.get(i).getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes the positive entries to ~/.proxy/dns_cache.
+     *
+     * @throws  IOException If an I/O error occurs
+     */
+    public void saveSnapshot() throws IOException {
+        HashMap<String, SnapshotEntry> snapshot = new HashMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            if (value.address != null) {
+                snapshot.put(entry.getKey(), new SnapshotEntry(value.address, value.expiresAt));
+            }
+        }
+
+        synchronized (snapshotFile) {
+            try (FileOutputStream fileOut = new FileOutputStream(snapshotFile);
+                 ObjectOutputStream objectStream = new ObjectOutputStream(fileOut)) {
+                objectStream.writeObject(snapshot);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadSnapshot() throws IOException {
+        long now = System.currentTimeMillis();
+        try (FileInputStream fileIn = new FileInputStream(snapshotFile);
+             ObjectInputStream objectStream = new ObjectInputStream(fileIn)) {
+            HashMap<String, SnapshotEntry> snapshot = (HashMap<String, SnapshotEntry>) objectStream.readObject();
+            for (Map.Entry<String, SnapshotEntry> entry : snapshot.entrySet()) {
+                if (entry.getValue().expiresAt > now) {
+                    entries.put(entry.getKey(), new Entry(entry.getValue().address, entry.getValue().expiresAt));
+                } else {
+                    // Expired while the proxy was down, resolve it again in the background
+                    String key = entry.getKey();
+                    refresher.execute(() -> {
+                        refreshes.increment();
+                        try {
+                            lookup(key);
+                        } catch (UnknownHostException ignore) {
+                            // Not cached, so the negative answer stored by lookup is right
+                        }
+                    });
+                }
+            }
+        } catch (ClassNotFoundException | IOException | ClassCastException e) {
+            // Snapshot is only an optimization, start cold if it is broken
+            if (!snapshotFile.delete()) {
+                throw new IOException("Failed to delete the broken dns_cache");
+            }
+        }
+    }
+
+    public String getStats() {
+        return "DNS cache: " + hits.sum() + " hits, " + misses.sum() + " misses, " + refreshes.sum()
+                + " refreshes, " + entries.size() + " entries";
+    }
+}
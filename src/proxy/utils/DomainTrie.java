@@ -0,0 +1,147 @@
+package proxy.utils;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable suffix trie of domain names stored by reversed labels, so example.com is stored as com -> example.
+ * <p>
+ * A hostname matches if one of its label suffixes is in the trie, e.g. ads.example.com is matched by example.com.
+ * Lookups do not allocate and the trie never changes after it is built, so readers need no locking.
+ */
+public final class DomainTrie {
+    private static final DomainTrie EMPTY = new DomainTrie(new Node());
+
+    private final Node root;
+
+    private DomainTrie(Node root) {
+        this.root = root;
+    }
+
+    public static DomainTrie empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Builds a trie from the domains, the domains must already be normalized with normalize().
+     *
+     * @param   domains the domains to match
+     * @return  the trie matching the domains and all of their subdomains
+     */
+    public static DomainTrie build(Collection<String> domains) {
+        BuildNode root = new BuildNode();
+        for (String domain : domains) {
+            BuildNode node = root;
+            int end = domain.length();
+            while (end > 0) {
+                int dot = domain.lastIndexOf('.', end - 1);
+                node = node.children.computeIfAbsent(domain.substring(dot + 1, end), k -> new BuildNode());
+                end = dot;
+            }
+            if (node != root) {
+                node.terminal = true;
+            }
+        }
+        return new DomainTrie(root.freeze());
+    }
+
+    /**
+     * Brings a user supplied hostname into the form stored in the trie: lower case, no trailing dot, no www. prefix.
+     *
+     * @param   host    the hostname
+     * @return  the normalized hostname
+     */
+    public static String normalize(String host) {
+        String normalized = host.trim().toLowerCase(Locale.ROOT);
+        if (normalized.endsWith(".")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        if (normalized.startsWith("www.")) { // Remove www. part since we do not store that
+            normalized = normalized.substring(4);
+        }
+        return normalized;
+    }
+
+    /**
+     * @param   host    the requested hostname, case does not matter
+     * @return  true if the host or one of its parent domains is in the trie
+     */
+    public boolean matches(String host) {
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        Node node = root;
+        while (end > 0) {
+            int dot = host.lastIndexOf('.', end - 1);
+            node = node.child(host, dot + 1, end);
+            if (node == null) {
+                return false;
+            }
+            if (node.terminal) {
+                return true;
+            }
+            end = dot;
+        }
+        return false;
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(s.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // Read only node, children are kept in an open addressing table to avoid allocations during lookups
+    private static final class Node {
+        private String[] labels = new String[0];
+        private Node[] children = new Node[0];
+        private boolean terminal = false;
+
+        private Node child(String host, int start, int end) {
+            if (labels.length == 0) {
+                return null;
+            }
+            int length = end - start;
+            int mask = labels.length - 1;
+            for (int slot = hash(host, start, end) & mask; labels[slot] != null; slot = (slot + 1) & mask) {
+                String label = labels[slot];
+                if (label.length() == length && label.regionMatches(true, 0, host, start, length)) {
+                    return children[slot];
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class BuildNode {
+        private final Map<String, BuildNode> children = new HashMap<>();
+        private boolean terminal = false;
+
+        private Node freeze() {
+            Node node = new Node();
+            node.terminal = terminal;
+            if (!children.isEmpty()) {
+                // Keep the table at most half full so probing stays short
+                int size = Integer.highestOneBit(children.size() * 2 - 1) << 1;
+                node.labels = new String[size];
+                node.children = new Node[size];
+                for (Map.Entry<String, BuildNode> child : children.entrySet()) {
+                    String label = child.getKey();
+                    int slot = hash(label, 0, label.length()) & (size - 1);
+                    while (node.labels[slot] != null) {
+                        slot = (slot + 1) & (size - 1);
+                    }
+                    node.labels[slot] = label;
+                    node.children[slot] = child.getValue().freeze();
+                }
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package proxy.utils;
+
+import java.util.Locale;
+
+/**
+ * The default admission policy. A response is cached once its URL was requested often enough recently, so one-hit
+ * wonders never reach the disk. Bodies over the size limit and media types that are streamed rather than reused
+ * are never cached.
+ */
+public class FrequencyAdmission implements CacheAdmission {
+    private final FrequencySketch sketch;
+    private final int minRequests;
+    private final long maxObjectSize;
+    private final String[] rejectedTypes;
+
+    /**
+     * @param   expectedEntries the number of distinct URLs the popularity is tracked for
+     * @param   minRequests     how many recent requests, including the current one, a URL needs to be cached
+     * @param   maxObjectSize   the largest body that is cached
+     * @param   rejectedTypes   media type prefixes that are never cached, like video/
+     */
+    public FrequencyAdmission(int expectedEntries, int minRequests, long maxObjectSize, String[] rejectedTypes) {
+        this.sketch = new FrequencySketch(expectedEntries);
+        this.minRequests = minRequests;
+        this.maxObjectSize = maxObjectSize;
+        this.rejectedTypes = rejectedTypes;
+    }
+
+    @Override
+    public void recordRequest(CacheKey key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public boolean admit(CacheKey key, long contentLength, String contentType) {
+        if (contentLength > maxObjectSize) {
+            return false;
+        }
+        if (contentType != null) {
+            String type = contentType.trim().toLowerCase(Locale.ROOT);
+            for (String rejected : rejectedTypes) {
+                if (!rejected.isEmpty() && type.startsWith(rejected)) {
+                    return false;
+                }
+            }
+        }
+        return sketch.frequency(key) >= minRequests;
+    }
+
+    @Override
+    public long getMaxObjectSize() {
+        return maxObjectSize;
+    }
+}
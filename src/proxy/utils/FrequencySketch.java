@@ -0,0 +1,75 @@
+package proxy.utils;
+
+/**
+ * Count-min sketch estimating how often keys were seen recently, the frequency filter of TinyLFU.
+ * <p>
+ * Four rows of saturating 4 bit counters are kept in bytes. When the number of increments reaches ten times the
+ * width every counter is halved, so old popularity fades out.
+ */
+public final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+
+    private final byte[] counters;
+    private final int widthMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param   expectedEntries the number of distinct keys the sketch should tell apart
+     */
+    public FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1)) << 1;
+        counters = new byte[DEPTH * width];
+        widthMask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private int index(int hash, int row) {
+        int rowHash = hash + row * ((hash >>> 17) | 1) * 0x9E3779B9;
+        return row * (widthMask + 1) + (spread(rowHash) & widthMask);
+    }
+
+    public synchronized void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(hash, row);
+            if (counters[i] < MAX_COUNT) {
+                counters[i]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @param   key the key
+     * @return  the estimated number of recent occurrences of the key, at most 15
+     */
+    public synchronized int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters[index(hash, row)]);
+        }
+        return min;
+    }
+
+    // Age the counters by halving them
+    private void reset() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = (byte) (counters[i] >>> 1);
+        }
+        additions /= 2;
+    }
+}
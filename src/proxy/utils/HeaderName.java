@@ -0,0 +1,140 @@
+package proxy.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * A header field name, compared case-insensitively.
+ * <p>
+ * Names the proxy looks at are interned: a parsed field with one of these names is tagged with it once, so lookups
+ * compare a number instead of the bytes of every field. Other names fall back to comparing bytes.
+ */
+public final class HeaderName {
+    // Open addressing table of the interned names, a power of two well above their number
+    private static final HeaderName[] TABLE = new HeaderName[128];
+    private static int interned = 0;
+
+    public static final HeaderName ACCEPT_ENCODING = intern("Accept-Encoding");
+    public static final HeaderName AGE = intern("Age");
+    public static final HeaderName AUTHORIZATION = intern("Authorization");
+    public static final HeaderName CACHE_CONTROL = intern("Cache-Control");
+    public static final HeaderName CONNECTION = intern("Connection");
+    public static final HeaderName CONTENT_LENGTH = intern("Content-Length");
+    public static final HeaderName CONTENT_LOCATION = intern("Content-Location");
+    public static final HeaderName CONTENT_TYPE = intern("Content-Type");
+    public static final HeaderName DATE = intern("Date");
+    public static final HeaderName ETAG = intern("ETag");
+    public static final HeaderName EXPECT = intern("Expect");
+    public static final HeaderName EXPIRES = intern("Expires");
+    public static final HeaderName HOST = intern("Host");
+    public static final HeaderName IF_MODIFIED_SINCE = intern("If-Modified-Since");
+    public static final HeaderName IF_NONE_MATCH = intern("If-None-Match");
+    public static final HeaderName KEEP_ALIVE = intern("Keep-Alive");
+    public static final HeaderName LAST_MODIFIED = intern("Last-Modified");
+    public static final HeaderName PRAGMA = intern("Pragma");
+    public static final HeaderName PROXY_CONNECTION = intern("Proxy-Connection");
+    public static final HeaderName TRANSFER_ENCODING = intern("Transfer-Encoding");
+    public static final HeaderName VARY = intern("Vary");
+
+    private final String name;
+    private final byte[] bytes;
+    // Position in the table, -1 for names that are not interned
+    private final int id;
+
+    private HeaderName(String name, int id) {
+        this.name = name;
+        this.bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        this.id = id;
+    }
+
+    private static HeaderName intern(String name) {
+        if (++interned > TABLE.length / 2) {
+            throw new IllegalStateException("Too many interned header names");
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        int slot = slot(bytes, 0, bytes.length);
+        while (TABLE[slot] != null) {
+            slot = (slot + 1) & (TABLE.length - 1);
+        }
+        HeaderName headerName = new HeaderName(name, slot);
+        TABLE[slot] = headerName;
+        return headerName;
+    }
+
+    /**
+     * @param   name    a header field name
+     * @return  the interned name if it is a known one, a new name otherwise
+     */
+    public static HeaderName of(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        HeaderName known = lookup(bytes, 0, bytes.length);
+        return known != null ? known : new HeaderName(name, -1);
+    }
+
+    /**
+     * @return  the interned name stored in data[from] to data[to - 1], null if it is not a known one
+     */
+    static HeaderName lookup(byte[] data, int from, int to) {
+        for (int slot = slot(data, from, to); TABLE[slot] != null; slot = (slot + 1) & (TABLE.length - 1)) {
+            if (TABLE[slot].matches(data, from, to)) {
+                return TABLE[slot];
+            }
+        }
+        return null;
+    }
+
+    // Case-insensitive hash of the name
+    private static int slot(byte[] data, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + lower(data[i]);
+        }
+        return (hash ^ (hash >>> 7)) & (TABLE.length - 1);
+    }
+
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /**
+     * @return  true if data[from] to data[to - 1] is this name in any case
+     */
+    boolean matches(byte[] data, int from, int to) {
+        if (to - from != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (lower(data[from + i]) != lower(bytes[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof HeaderName)) {
+            return false;
+        }
+        HeaderName headerName = (HeaderName) other;
+        return id >= 0 ? id == headerName.id : name.equalsIgnoreCase(headerName.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.toLowerCase(Locale.ROOT).hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,142 @@
+package proxy.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte budgeted in-memory tier in front of the disk cache for small, frequently requested objects.
+ * <p>
+ * Objects are kept in direct buffers outside of the Java heap. Eviction follows TinyLFU: the least recently used
+ * object is only evicted for a newcomer that the frequency sketch has seen more often, so a burst of one-time
+ * requests cannot flush the popular objects.
+ * <p>
+ * Every object is kept with the index entry it was loaded for, a lookup for another entry of the same key misses, so
+ * a replaced response is never served with the body of the previous one.
+ */
+public class HotObjectCache {
+    private static final class Resident {
+        private final CacheEntry entry;
+        private final ByteBuffer object;
+
+        private Resident(CacheEntry entry, ByteBuffer object) {
+            this.entry = entry;
+            this.object = object;
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxObjectSize;
+    // Access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Resident> objects = new LinkedHashMap<>(64, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long residentBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public HotObjectCache(long maxBytes, int maxObjectSize) {
+        this.maxBytes = maxBytes;
+        this.maxObjectSize = maxObjectSize;
+        // Size the sketch for the number of average sized objects that fit into the budget
+        sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / (maxObjectSize / 8))));
+    }
+
+    public int getMaxObjectSize() {
+        return maxObjectSize;
+    }
+
+    /**
+     * @param   key     the cache key
+     * @param   entry   the index entry the object is looked up for
+     * @return  a read only view of the object positioned at its start, or null if it is not in memory or was
+     *          loaded for another entry
+     */
+    public ByteBuffer get(String key, CacheEntry entry) {
+        Resident resident;
+        synchronized (this) {
+            sketch.increment(key);
+            resident = objects.get(key);
+        }
+        if (resident == null || !resident.entry.isSameResponse(entry)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return resident.object.asReadOnlyBuffer();
+    }
+
+    /**
+     * Offers an object loaded from the disk cache. The buffer is kept as it is, so it should be a direct buffer
+     * that is not changed afterwards.
+     *
+     * @param   key     the cache key
+     * @param   entry   the index entry the object was loaded for
+     * @param   object  the object from position to limit
+     * @return  true if the object was admitted
+     */
+    public boolean offer(String key, CacheEntry entry, ByteBuffer object) {
+        int size = object.remaining();
+        if (size > maxObjectSize || size > maxBytes) {
+            rejections.increment();
+            return false;
+        }
+
+        synchronized (this) {
+            Resident previous = objects.remove(key);
+            if (previous != null) {
+                residentBytes -= previous.object.remaining();
+            }
+
+            // First make sure every victim needed for the space is less popular than the newcomer
+            int candidateFrequency = sketch.frequency(key);
+            long freed = 0;
+            int victims = 0;
+            for (Map.Entry<String, Resident> victim : objects.entrySet()) {
+                if (residentBytes - freed + size <= maxBytes) {
+                    break;
+                }
+                if (candidateFrequency <= sketch.frequency(victim.getKey())) {
+                    rejections.increment();
+                    return false;
+                }
+                freed += victim.getValue().object.remaining();
+                victims++;
+            }
+
+            Iterator<Resident> eldest = objects.values().iterator();
+            for (int i = 0; i < victims; i++) {
+                residentBytes -= eldest.next().object.remaining();
+                eldest.remove();
+                evictions.increment();
+            }
+
+            objects.put(key, new Resident(entry, object.slice()));
+            residentBytes += size;
+        }
+        return true;
+    }
+
+    public synchronized void invalidate(String key) {
+        Resident previous = objects.remove(key);
+        if (previous != null) {
+            residentBytes -= previous.object.remaining();
+        }
+    }
+
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public String getStats() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        double hitRatio = total == 0 ? 0 : 100.0 * hitCount / total;
+        return "Memory cache: " + String.format("%.1f", hitRatio) + "% hit ratio, " + evictions.sum()
+                + " evictions, " + rejections.sum() + " rejections, " + getResidentBytes() + " resident bytes";
+    }
+}
@@ -0,0 +1,264 @@
+package proxy.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A cacheable response that is being written to the cache by the request that fetched it from the origin.
+ * <p>
+ * Only the body is written to the cache file, the header is kept in memory. Other requests for the same URL attach to
+ * it instead of fetching the URL again (collapsed forwarding). They get the header and then follow the growing cache
+ * file, streaming every byte as soon as the writer has written it. Attaching is only possible until the writer starts
+ * to finish or drops the cached copy, so attached readers always have the file open before it is moved or deleted.
+ * <p>
+ * The end of the body and the fate of the cached copy are tracked apart. When the copy is dropped (queue full, over
+ * the size limit, disk error) the rest of the body is relayed in memory to the readers already attached, they still
+ * get the whole response, only the cache does not. Relayed bytes are kept until the slowest reader has sent them.
+ */
+public class InFlightResponse extends OutputStream {
+    /**
+     * A reader attached to the response.
+     */
+    static final class Attachment {
+        private final FileChannel channel;
+        // Body bytes sent to the reader so far
+        private long position = 0;
+
+        private Attachment(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final File file;
+    private final FileOutputStream out;
+    private final byte[] header;
+    // Only updated by the writer
+    private final CRC32 checksum = new CRC32();
+    // Guarded by this
+    private long written = 0;
+    private boolean joinable = true;
+    private boolean copyDropped = false;
+    private boolean bodyEnded = false;
+    private boolean bodyComplete = false;
+    private long bodyLength = 0;
+    private final List<Attachment> readers = new ArrayList<>();
+    // Body bytes past the cached copy by their offset, only kept while readers are attached
+    private final TreeMap<Long, byte[]> relayed = new TreeMap<>();
+
+    InFlightResponse(File file, byte[] header) throws IOException {
+        this.file = file;
+        this.header = header;
+        this.out = new FileOutputStream(file);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // Unbuffered, the bytes are readable through the file as soon as the write returns
+        out.write(b, off, len);
+        checksum.update(b, off, len);
+        synchronized (this) {
+            written += len;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    // CRC32 of the body written so far, only valid on the writer thread
+    long getChecksum() {
+        return checksum.getValue();
+    }
+
+    // Attaches a new reader, null once the writer started to finish or dropped the cached copy
+    synchronized Attachment attach() throws IOException {
+        if (!joinable) {
+            return null;
+        }
+        Attachment reader = new Attachment(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        readers.add(reader);
+        return reader;
+    }
+
+    // Called before the file is moved or deleted
+    synchronized void closeForReaders() {
+        joinable = false;
+    }
+
+    /**
+     * Gives up the cached copy, the file is not written past its current length and the attached readers get the
+     * rest of the body through {@link #relay}. Their end of the body is only set by {@link #endBody} from then on.
+     */
+    public synchronized void dropCopy() {
+        joinable = false;
+        copyDropped = true;
+    }
+
+    /**
+     * Hands body bytes that are not in the cached copy to the attached readers.
+     *
+     * @param   offset  the position of the bytes in the body
+     * @return  false if no reader is attached, nobody needs the rest of the body
+     */
+    public synchronized boolean relay(long offset, byte[] b, int off, int len) {
+        if (readers.isEmpty()) {
+            return false;
+        }
+        if (len > 0) {
+            relayed.put(offset, Arrays.copyOfRange(b, off, off + len));
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Ends the body for the readers, independent of whether the cached copy is stored.
+     *
+     * @param   complete    false if the origin body broke, the readers fail
+     * @param   length      the length of the body
+     */
+    public synchronized void endBody(boolean complete, long length) {
+        if (bodyEnded) {
+            return;
+        }
+        bodyEnded = true;
+        bodyComplete = complete;
+        bodyLength = length;
+        notifyAll();
+    }
+
+    /**
+     * Ends the cached copy. A writer that neither dropped the copy nor ended the body ends it here, the body is then
+     * complete only if the copy was stored.
+     *
+     * @param   stored  true if the copy was moved into the cache
+     */
+    synchronized void finish(boolean stored) {
+        closeForReaders();
+        if (!copyDropped) {
+            endBody(stored, written);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Streams the response to a reader while it is being written.
+     *
+     * @param   reader  the reader returned by attach, detached when done
+     * @param   target  where to send the response
+     * @return  false if the body broke before any byte was sent, the caller can fetch the URL itself
+     * @throws  IOException If sending fails or the body broke after a part of the response was sent
+     */
+    boolean streamTo(Attachment reader, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = reader.channel) {
+            boolean headerSent = false;
+            while (true) {
+                long position = reader.position;
+                long available = 0;
+                byte[] segment = null;
+                long segmentOffset = 0;
+                synchronized (this) {
+                    while (true) {
+                        if (bodyEnded && !bodyComplete) {
+                            if (!headerSent) {
+                                return false;
+                            }
+                            throw new IOException("The collapsed response failed while it was being sent");
+                        }
+                        if (position < written) {
+                            available = written;
+                            break;
+                        }
+                        Map.Entry<Long, byte[]> entry = relayed.floorEntry(position);
+                        if (entry != null && position < entry.getKey() + entry.getValue().length) {
+                            segment = entry.getValue();
+                            segmentOffset = entry.getKey();
+                            break;
+                        }
+                        if (bodyEnded && position >= bodyLength) {
+                            if (headerSent) {
+                                return true;
+                            }
+                            break;
+                        }
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for the response");
+                        }
+                    }
+                }
+
+                if (!headerSent) {
+                    writeFully(ByteBuffer.wrap(header), target);
+                    headerSent = true;
+                }
+                if (segment != null) {
+                    // Relayed segments are never changed once stored
+                    int from = (int) (position - segmentOffset);
+                    writeFully(ByteBuffer.wrap(segment, from, segment.length - from), target);
+                    position = segmentOffset + segment.length;
+                } else {
+                    while (position < available) {
+                        position += channel.transferTo(position, available - position, target);
+                    }
+                }
+                advance(reader, position);
+            }
+        } finally {
+            detach(reader);
+        }
+    }
+
+    private static void writeFully(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    // Drops the relayed bytes every reader has sent
+    private synchronized void advance(Attachment reader, long position) {
+        reader.position = position;
+        long slowest = Long.MAX_VALUE;
+        for (Attachment other : readers) {
+            slowest = Math.min(slowest, other.position);
+        }
+        while (!relayed.isEmpty()) {
+            Map.Entry<Long, byte[]> first = relayed.firstEntry();
+            if (first.getKey() + first.getValue().length > slowest) {
+                break;
+            }
+            relayed.pollFirstEntry();
+        }
+    }
+
+    private synchronized void detach(Attachment reader) {
+        readers.remove(reader);
+        if (readers.isEmpty()) {
+            relayed.clear();
+        } else {
+            advance(readers.get(0), readers.get(0).position);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package proxy.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A ConcurrentHashMap persisted as a snapshot plus an append-only journal of changes.
+ * <p>
+ * Every change costs one small journal record instead of rewriting the whole map. A single writer thread appends
+ * the queued records in batches and syncs once per batch (group commit), so callers never wait for the disk. The
+ * writer periodically compacts the journal into a new snapshot. The snapshot is the serialized map, the same
+ * format the indexes used before the journal existed, so existing index files are loaded as snapshots.
+ *
+ * @param <V> type of the values
+ */
+public class IndexJournal<V extends Serializable> {
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int MAX_BATCH = 1024;
+    private static final int COMPACT_RECORDS = 50_000;
+    private static final long COMPACT_INTERVAL = 10 * 60 * 1000; // ms
+
+    private final String name;
+    private final File snapshotFile;
+    private final File journalFile;
+    private final ConcurrentHashMap<String, V> map = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Logger logger = Logger.getLogger();
+
+    private FileOutputStream journalOut;
+    private DataOutputStream journalData;
+    private int recordsSinceCompaction = 0;
+    private long lastCompaction = System.currentTimeMillis();
+
+    public IndexJournal(String name, File snapshotFile) {
+        this.name = name;
+        this.snapshotFile = snapshotFile;
+        this.journalFile = new File(snapshotFile + ".journal");
+    }
+
+    /**
+     * Loads the snapshot, replays the journal on top of it and starts the writer thread.
+     *
+     * @return  false if the snapshot was broken and the index was reset to an empty one
+     * @throws  IOException If the index files cannot be read or deleted
+     */
+    @SuppressWarnings("unchecked")
+    public boolean open() throws IOException {
+        boolean intact = true;
+        if (snapshotFile.exists()) {
+            try (FileInputStream index = new FileInputStream(snapshotFile);
+                 ObjectInputStream snapshot = new ObjectInputStream(index)) {
+                map.putAll((ConcurrentHashMap<String, V>) snapshot.readObject());
+            } catch (ClassNotFoundException | ClassCastException | IOException e) {
+                // A torn snapshot ends early (EOFException), it is as broken as a corrupt one
+                logger.addVerboseLog("Ignoring the broken " + name + " snapshot: " + e);
+                // Try to delete broken snapshot, the journal is meaningless without it
+                if (!snapshotFile.delete() || (journalFile.exists() && !journalFile.delete())) {
+                    throw new IOException("Failed to delete the broken " + name);
+                }
+                map.clear();
+                intact = false;
+            }
+        }
+
+        long validLength = replayJournal();
+        try (FileChannel channel = new FileOutputStream(journalFile, true).getChannel()) {
+            // Drop a record torn by a crash so new records are not appended after garbage
+            channel.truncate(validLength);
+        }
+
+        journalOut = new FileOutputStream(journalFile, true);
+        journalData = new DataOutputStream(new BufferedOutputStream(journalOut, 1 << 16));
+        Thread writer = new Thread(this::writeRecords, name + "-journal");
+        writer.setDaemon(true);
+        writer.start();
+        return intact;
+    }
+
+    // Record format: payload length, payload CRC32, payload (operation, key, value length, serialized value)
+    @SuppressWarnings("unchecked")
+    private long replayJournal() throws IOException {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+        long validLength = 0;
+        long fileLength = journalFile.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (length <= 0 || validLength + 8 + length > fileLength) {
+                    break;
+                }
+                long checksum = in.readInt() & 0xFFFFFFFFL;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte op = record.readByte();
+                String key = record.readUTF();
+                if (op == OP_PUT) {
+                    byte[] value = new byte[record.readInt()];
+                    record.readFully(value);
+                    try (ObjectInputStream valueIn = new ObjectInputStream(new ByteArrayInputStream(value))) {
+                        map.put(key, (V) valueIn.readObject());
+                    }
+                } else {
+                    map.remove(key);
+                }
+                validLength += 8 + length;
+            }
+        } catch (EOFException | ClassNotFoundException | ClassCastException | ObjectStreamException e) {
+            // Torn or broken tail, everything before it is still valid
+            logger.addVerboseLog("Ignoring the broken tail of the " + name + " journal");
+        }
+        return validLength;
+    }
+
+    /**
+     * @return  the live map, it must only be changed through the journal
+     */
+    public ConcurrentHashMap<String, V> getMap() {
+        return map;
+    }
+
+    public V put(String key, V value) {
+        byte[] record = encode(OP_PUT, key, value);
+        Object[] previous = new Object[1];
+        // Enqueue under the bin lock of the key so the journal order matches the map order
+        map.compute(key, (k, old) -> {
+            previous[0] = old;
+            queue.add(record);
+            return value;
+        });
+        return cast(previous[0]);
+    }
+
+    public V putIfAbsent(String key, V value) {
+        byte[] record = encode(OP_PUT, key, value);
+        Object[] previous = new Object[1];
+        map.compute(key, (k, old) -> {
+            if (old != null) {
+                previous[0] = old;
+                return old;
+            }
+            queue.add(record);
+            return value;
+        });
+        return cast(previous[0]);
+    }
+
+    public V remove(String key) {
+        byte[] record = encode(OP_REMOVE, key, null);
+        Object[] previous = new Object[1];
+        map.computeIfPresent(key, (k, old) -> {
+            previous[0] = old;
+            queue.add(record);
+            return null;
+        });
+        return cast(previous[0]);
+    }
+
+    /**
+     * Replaces the value only while the key is still mapped to the given value instance.
+     *
+     * @return  true if the value was replaced
+     */
+    public boolean replace(String key, V expected, V value) {
+        byte[] record = encode(OP_PUT, key, value);
+        boolean[] replaced = new boolean[1];
+        map.computeIfPresent(key, (k, old) -> {
+            if (old != expected) {
+                return old;
+            }
+            replaced[0] = true;
+            queue.add(record);
+            return value;
+        });
+        return replaced[0];
+    }
+
+    /**
+     * Removes the key only while it is still mapped to the given value instance.
+     *
+     * @return  true if the key was removed
+     */
+    public boolean remove(String key, V expected) {
+        byte[] record = encode(OP_REMOVE, key, null);
+        boolean[] removed = new boolean[1];
+        map.computeIfPresent(key, (k, old) -> {
+            if (old != expected) {
+                return old;
+            }
+            removed[0] = true;
+            queue.add(record);
+            return null;
+        });
+        return removed[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private V cast(Object value) {
+        return (V) value;
+    }
+
+    /**
+     * Waits until every change made before the call is written and synced to the disk.
+     *
+     * @throws  InterruptedException If interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        CountDownLatch written = new CountDownLatch(1);
+        queue.add(written);
+        written.await();
+    }
+
+    private static byte[] encode(byte op, String key, Serializable value) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(payload);
+            record.writeByte(op);
+            record.writeUTF(key);
+            if (op == OP_PUT) {
+                ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+                try (ObjectOutputStream valueOut = new ObjectOutputStream(serialized)) {
+                    valueOut.writeObject(value);
+                }
+                record.writeInt(serialized.size());
+                serialized.writeTo(record);
+            }
+            record.flush();
+
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer framed = ByteBuffer.allocate(8 + bytes.length);
+            framed.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+            return framed.array();
+        } catch (IOException ex) {
+            // Writing to memory does not fail
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void writeRecords() {
+        ArrayList<Object> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Object first = queue.poll(COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    writeBatch(batch);
+                }
+                if (recordsSinceCompaction >= COMPACT_RECORDS || (recordsSinceCompaction > 0
+                        && System.currentTimeMillis() - lastCompaction >= COMPACT_INTERVAL)) {
+                    compact();
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (IOException ex) {
+                logger.addVerboseLog("Writing the " + name + " journal failed: " + ex);
+            } finally {
+                // Waiting flush calls are released even if the write failed
+                for (Object item : batch) {
+                    if (item instanceof CountDownLatch) {
+                        ((CountDownLatch) item).countDown();
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(ArrayList<Object> batch) throws IOException {
+        for (Object item : batch) {
+            if (item instanceof byte[]) {
+                journalData.write((byte[]) item);
+                recordsSinceCompaction++;
+            }
+        }
+        journalData.flush();
+        // One sync for the whole batch
+        journalOut.getChannel().force(false);
+    }
+
+    // Write the map as a new snapshot and start an empty journal
+    private void compact() throws IOException {
+        File tempFile = new File(snapshotFile + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+             ObjectOutputStream objectStream = new ObjectOutputStream(new BufferedOutputStream(fileOut))) {
+            objectStream.writeObject(map);
+            objectStream.flush();
+            fileOut.getChannel().force(false);
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        journalData.close();
+        journalOut = new FileOutputStream(journalFile, false);
+        journalData = new DataOutputStream(new BufferedOutputStream(journalOut, 1 << 16));
+        recordsSinceCompaction = 0;
+        lastCompaction = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,9 @@
+package proxy.utils;
+
+import java.io.IOException;
+
+public class MalformedMessageException extends IOException {
+    public MalformedMessageException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,472 @@
+package proxy.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The start line and header fields of one HTTP/1.1 message (RFC 9112 sections 3 to 5), indexed in place.
+ * <p>
+ * The head keeps its bytes as they were received and only records where the parts of the start line and every field
+ * line begin and end. Fields keep their order, repeated fields like Set-Cookie are all kept and names are compared
+ * case-insensitively. Strings are created when a part is asked for.
+ * <p>
+ * Edits do not touch the received bytes: a replaced or added field gets a line of its own and a removed one is only
+ * marked. Writing the head copies the unchanged runs of lines as they are and splices the changed lines in between.
+ */
+public final class MessageHead {
+    // Field line start, colon, value start, value end, line end after the CRLF and the interned name id
+    private static final int FIELD_SLOTS = 6;
+    private static final int NOT_INTERNED = -1;
+    // Start slot of a removed field
+    private static final int REMOVED = -1;
+
+    private final byte[] data;
+    // Start line parts: method, target, version of a request or version, status, reason of a response
+    private final int firstEnd;
+    private final int secondStart;
+    private final int secondEnd;
+    private final int thirdStart;
+    private final int lineEnd;
+    private int[] fields;
+    private int fieldCount;
+    // The own line of every replaced or added field, offsets of such fields point into it, null until a field changes
+    private byte[][] changedLines;
+
+    private MessageHead(byte[] data, int firstEnd, int secondStart, int secondEnd, int thirdStart, int lineEnd,
+                        int[] fields, int fieldCount) {
+        this.data = data;
+        this.firstEnd = firstEnd;
+        this.secondStart = secondStart;
+        this.secondEnd = secondEnd;
+        this.thirdStart = thirdStart;
+        this.lineEnd = lineEnd;
+        this.fields = fields;
+        this.fieldCount = fieldCount;
+    }
+
+    /**
+     * Indexes a head, the bytes are copied once.
+     *
+     * @param   buffer  holds the head
+     * @param   from    the first byte of the start line
+     * @param   to      the index after the blank line that ends the head
+     * @return  the indexed head
+     * @throws  MalformedMessageException If the start line or a field line is invalid
+     */
+    public static MessageHead parse(byte[] buffer, int from, int to) throws MalformedMessageException {
+        byte[] data = Arrays.copyOfRange(buffer, from, to);
+        if (data.length < 4 || data[data.length - 4] != '\r' || data[data.length - 3] != '\n') {
+            throw new MalformedMessageException("Head does not end with a blank line");
+        }
+        int lineEnd = lineEnd(data, 0);
+
+        int firstEnd = indexOf(data, ' ', 0, lineEnd);
+        if (firstEnd <= 0) {
+            throw new MalformedMessageException("Invalid start line");
+        }
+        int secondStart = firstEnd + 1;
+        int secondEnd = indexOf(data, ' ', secondStart, lineEnd);
+        // A status line may end right after the status code
+        int thirdStart = secondEnd < 0 ? lineEnd : secondEnd + 1;
+        if (secondEnd < 0) {
+            secondEnd = lineEnd;
+        }
+        if (secondEnd == secondStart) {
+            throw new MalformedMessageException("Invalid start line");
+        }
+
+        int[] fields = new int[16 * FIELD_SLOTS];
+        int fieldCount = 0;
+        // The head ends with an empty line, every line before it is a field line
+        for (int start = lineEnd + 2; start < data.length - 2; ) {
+            int end = lineEnd(data, start);
+            if (data[start] == ' ' || data[start] == '\t') {
+                // Obsolete line folding, a proxy must not pass it on as it is
+                throw new MalformedMessageException("Folded field line");
+            }
+            int colon = indexOf(data, ':', start, end);
+            if (colon <= start) {
+                throw new MalformedMessageException("Invalid field line");
+            }
+            for (int i = start; i < colon; i++) {
+                // Field names are tokens, whitespace before the colon is rejected too
+                if (data[i] <= ' ' || data[i] == 127) {
+                    throw new MalformedMessageException("Invalid field name");
+                }
+            }
+            int valueStart = colon + 1;
+            int valueEnd = end;
+            while (valueStart < valueEnd && isWhitespace(data[valueStart])) {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && isWhitespace(data[valueEnd - 1])) {
+                valueEnd--;
+            }
+            if (fieldCount * FIELD_SLOTS == fields.length) {
+                fields = Arrays.copyOf(fields, fields.length * 2);
+            }
+            HeaderName known = HeaderName.lookup(data, start, colon);
+            int slot = fieldCount++ * FIELD_SLOTS;
+            fields[slot] = start;
+            fields[slot + 1] = colon;
+            fields[slot + 2] = valueStart;
+            fields[slot + 3] = valueEnd;
+            fields[slot + 4] = end + 2;
+            fields[slot + 5] = known != null ? known.getId() : NOT_INTERNED;
+            start = end + 2;
+        }
+        return new MessageHead(data, firstEnd, secondStart, secondEnd, thirdStart, lineEnd, fields, fieldCount);
+    }
+
+    /**
+     * @param   head    a complete head, like a stored response header
+     * @return  the indexed head
+     * @throws  MalformedMessageException If the head is invalid
+     */
+    public static MessageHead parse(byte[] head) throws MalformedMessageException {
+        return parse(head, 0, head.length);
+    }
+
+    // The CR of the line break ending the line, lines may not contain a bare CR or LF
+    private static int lineEnd(byte[] data, int from) throws MalformedMessageException {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == '\r' || data[i] == '\n' || data[i] == 0) {
+                if (data[i] == '\r' && i + 1 < data.length && data[i + 1] == '\n') {
+                    return i;
+                }
+                throw new MalformedMessageException("Invalid character in the head");
+            }
+        }
+        throw new MalformedMessageException("Unterminated line");
+    }
+
+    private static int indexOf(byte[] data, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private String string(int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    // The bytes the offsets of a field point into
+    private byte[] lineData(int index) {
+        return changedLines != null && changedLines[index] != null ? changedLines[index] : data;
+    }
+
+    private boolean isField(int index, HeaderName name) {
+        int slot = index * FIELD_SLOTS;
+        if (fields[slot] == REMOVED) {
+            return false;
+        }
+        if (name.getId() != NOT_INTERNED) {
+            return fields[slot + 5] == name.getId();
+        }
+        return fields[slot + 5] == NOT_INTERNED && name.matches(lineData(index), fields[slot], fields[slot + 1]);
+    }
+
+    private String value(int index) {
+        int slot = index * FIELD_SLOTS;
+        return new String(lineData(index), fields[slot + 2], fields[slot + 3] - fields[slot + 2],
+                StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return  true if this is a status line, its first part is the HTTP version
+     */
+    public boolean isResponse() {
+        return firstEnd > 5 && data[0] == 'H' && data[1] == 'T' && data[2] == 'T' && data[3] == 'P' && data[4] == '/';
+    }
+
+    /**
+     * @param   method  the method name
+     * @return  true if the request has the method, compared without creating a string
+     */
+    public boolean methodIs(String method) {
+        if (firstEnd != method.length()) {
+            return false;
+        }
+        for (int i = 0; i < firstEnd; i++) {
+            if (Character.toUpperCase((char) data[i]) != Character.toUpperCase(method.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getMethod() {
+        return string(0, firstEnd);
+    }
+
+    public String getTarget() {
+        return string(secondStart, secondEnd);
+    }
+
+    /**
+     * @return  the protocol version of a request or a response
+     */
+    public String getVersion() {
+        return isResponse() ? string(0, firstEnd) : string(thirdStart, lineEnd);
+    }
+
+    /**
+     * @return  the status code of a response, -1 for a request or an invalid status code
+     */
+    public int getStatus() {
+        if (!isResponse() || secondEnd - secondStart != 3) {
+            return -1;
+        }
+        int status = 0;
+        for (int i = secondStart; i < secondEnd; i++) {
+            if (data[i] < '0' || data[i] > '9') {
+                return -1;
+            }
+            status = status * 10 + data[i] - '0';
+        }
+        return status;
+    }
+
+    /**
+     * @param   name    the field name
+     * @return  the value of the first field with the name, null if there is none
+     */
+    public String getHeader(HeaderName name) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (isField(i, name)) {
+                return value(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param   name    the field name
+     * @return  the values of every field with the name in their order, empty if there is none
+     */
+    public List<String> getHeaders(HeaderName name) {
+        List<String> values = new ArrayList<>(2);
+        for (int i = 0; i < fieldCount; i++) {
+            if (isField(i, name)) {
+                values.add(value(i));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Joins the values of a list field that may be split over several lines (RFC 9110 section 5.3), like
+     * Cache-Control or Vary. Fields that are not lists, like Set-Cookie, must be read with getHeaders.
+     *
+     * @param   name    the field name
+     * @return  the values joined with commas, null if there is no such field
+     */
+    public String getCombined(HeaderName name) {
+        String combined = null;
+        for (int i = 0; i < fieldCount; i++) {
+            if (isField(i, name)) {
+                combined = combined == null ? value(i) : combined + ", " + value(i);
+            }
+        }
+        return combined;
+    }
+
+    /**
+     * Replaces the first field with the name where it is and removes the others, adds the field if there is none.
+     *
+     * @param   name    the field name
+     * @param   value   the new value, without line breaks
+     */
+    public void set(HeaderName name, String value) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (isField(i, name)) {
+                changeLine(i, name, value);
+                remove(name, i + 1);
+                return;
+            }
+        }
+        add(name, value);
+    }
+
+    /**
+     * Adds a field after all other fields, existing ones with the name are kept.
+     *
+     * @param   name    the field name
+     * @param   value   the value, without line breaks
+     */
+    public void add(HeaderName name, String value) {
+        if (fieldCount * FIELD_SLOTS == fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        changeLine(fieldCount++, name, value);
+    }
+
+    /**
+     * @param   name    the field name
+     * @return  true if a field was removed
+     */
+    public boolean remove(HeaderName name) {
+        return remove(name, 0);
+    }
+
+    private boolean remove(HeaderName name, int from) {
+        boolean removed = false;
+        for (int i = from; i < fieldCount; i++) {
+            if (isField(i, name)) {
+                fields[i * FIELD_SLOTS] = REMOVED;
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    // Gives the field a line of its own, the received bytes are left as they are
+    private void changeLine(int index, HeaderName name, String value) {
+        if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Line break in the value of " + name);
+        }
+        byte[] nameBytes = name.getBytes();
+        byte[] valueBytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] line = new byte[nameBytes.length + valueBytes.length + 4];
+        System.arraycopy(nameBytes, 0, line, 0, nameBytes.length);
+        line[nameBytes.length] = ':';
+        line[nameBytes.length + 1] = ' ';
+        System.arraycopy(valueBytes, 0, line, nameBytes.length + 2, valueBytes.length);
+        line[line.length - 2] = '\r';
+        line[line.length - 1] = '\n';
+
+        if (changedLines == null) {
+            changedLines = new byte[fields.length / FIELD_SLOTS][];
+        } else if (changedLines.length * FIELD_SLOTS < fields.length) {
+            changedLines = Arrays.copyOf(changedLines, fields.length / FIELD_SLOTS);
+        }
+        changedLines[index] = line;
+        int slot = index * FIELD_SLOTS;
+        fields[slot] = 0;
+        fields[slot + 1] = nameBytes.length;
+        fields[slot + 2] = nameBytes.length + 2;
+        fields[slot + 3] = nameBytes.length + 2 + valueBytes.length;
+        fields[slot + 4] = line.length;
+        fields[slot + 5] = name.getId();
+    }
+
+    /**
+     * @return  an independent copy, edits of one do not show in the other
+     */
+    public MessageHead copy() {
+        // The received bytes are never written to, the copies share them
+        MessageHead copy = new MessageHead(data, firstEnd, secondStart, secondEnd, thirdStart, lineEnd,
+                fields.clone(), fieldCount);
+        if (changedLines != null) {
+            copy.changedLines = changedLines.clone();
+        }
+        return copy;
+    }
+
+    /**
+     * @param   method  the request method of the copy
+     * @return  a copy of the request with its edits and another method
+     */
+    public MessageHead withMethod(String method) {
+        byte[] head = toBytes();
+        byte[] name = method.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] replaced = new byte[name.length + head.length - firstEnd];
+        System.arraycopy(name, 0, replaced, 0, name.length);
+        System.arraycopy(head, firstEnd, replaced, name.length, head.length - firstEnd);
+        try {
+            return parse(replaced);
+        } catch (MalformedMessageException ex) {
+            throw new IllegalArgumentException("Invalid method: " + method, ex);
+        }
+    }
+
+    /**
+     * @return  the head with its edits, the received bytes themselves if it was not edited
+     */
+    public byte[] toBytes() {
+        if (changedLines == null && !hasRemovedFields()) {
+            return data;
+        }
+        int length = lineEnd + 4;
+        for (int i = 0; i < fieldCount; i++) {
+            int slot = i * FIELD_SLOTS;
+            if (fields[slot] != REMOVED) {
+                length += fields[slot + 4] - fields[slot];
+            }
+        }
+
+        byte[] head = new byte[length];
+        // Unchanged lines that follow each other in the received bytes are copied as one run
+        int runStart = 0;
+        int runEnd = lineEnd + 2;
+        int position = 0;
+        for (int i = 0; i < fieldCount; i++) {
+            int slot = i * FIELD_SLOTS;
+            if (fields[slot] == REMOVED) {
+                continue;
+            }
+            if (lineData(i) == data && fields[slot] == runEnd) {
+                runEnd = fields[slot + 4];
+                continue;
+            }
+            System.arraycopy(data, runStart, head, position, runEnd - runStart);
+            position += runEnd - runStart;
+            if (lineData(i) == data) {
+                runStart = fields[slot];
+                runEnd = fields[slot + 4];
+            } else {
+                byte[] line = changedLines[i];
+                System.arraycopy(line, 0, head, position, line.length);
+                position += line.length;
+                runStart = runEnd = 0;
+            }
+        }
+        System.arraycopy(data, runStart, head, position, runEnd - runStart);
+        position += runEnd - runStart;
+        head[position] = '\r';
+        head[position + 1] = '\n';
+        return head;
+    }
+
+    private boolean hasRemovedFields() {
+        for (int i = 0; i < fieldCount; i++) {
+            if (fields[i * FIELD_SLOTS] == REMOVED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return  the length of the head including the blank line that ends it
+     */
+    public int length() {
+        return toBytes().length;
+    }
+
+    /**
+     * Writes the head with its edits in one write.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(toBytes());
+    }
+
+    /**
+     * @return  the whole head with its edits
+     */
+    @Override
+    public String toString() {
+        return new String(toBytes(), StandardCharsets.ISO_8859_1);
+    }
+}
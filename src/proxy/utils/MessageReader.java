@@ -0,0 +1,229 @@
+package proxy.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Buffered input of an HTTP connection that reads message heads in bulk.
+ * <p>
+ * A head is found by scanning the buffer for the blank line instead of reading it byte by byte. Bytes read past the
+ * head stay in the buffer and are returned first by the stream methods, so bodies and the next message lose nothing.
+ * A read that times out keeps everything read so far, calling {@link #readHead()} again continues where it stopped.
+ */
+public final class MessageReader extends InputStream {
+    // Apache header limit is 8KB, so I also use this limit as well
+    public static final int DEFAULT_LIMIT = 8192;
+
+    private final InputStream in;
+    private final byte[] buffer;
+    // Unread bytes are buffer[start] to buffer[end - 1]
+    private int start = 0;
+    private int end = 0;
+    // Where the search for the end of the head continues
+    private int scanned = 0;
+
+    public MessageReader(InputStream in) {
+        this(in, DEFAULT_LIMIT);
+    }
+
+    /**
+     * @param   in      the connection input
+     * @param   limit   the longest head accepted, also the size of the buffer
+     */
+    public MessageReader(InputStream in, int limit) {
+        this.in = in;
+        this.buffer = new byte[limit];
+    }
+
+    /**
+     * Reads the next message head, empty lines before it are skipped.
+     *
+     * @return  the head, null if the stream ended before the next message
+     * @throws  ArrayIndexOutOfBoundsException  If the head is longer than the limit
+     * @throws  MalformedMessageException   If the head is invalid, it is consumed
+     * @throws  IOException If reading fails, a timeout keeps the bytes read so far
+     */
+    public MessageHead readHead() throws IOException {
+        while (true) {
+            // Empty lines between messages are ignored (RFC 9112 section 2.2)
+            while (end - start >= 2 && buffer[start] == '\r' && buffer[start + 1] == '\n') {
+                start += 2;
+            }
+            scanned = Math.max(scanned, start);
+            int headEnd = findHeadEnd();
+            if (headEnd >= 0) {
+                int from = start;
+                start = headEnd;
+                scanned = headEnd;
+                return MessageHead.parse(buffer, from, headEnd);
+            }
+            if (end - start == buffer.length) {
+                throw new ArrayIndexOutOfBoundsException("Header limit exceeded");
+            }
+            if (end == buffer.length) {
+                compact();
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                if (end == start) {
+                    return null;
+                }
+                throw new EOFException("Connection closed inside a message head");
+            }
+            end += read;
+        }
+    }
+
+    /**
+     * Checks for a whole head without blocking, only bytes the connection already received are read.
+     *
+     * @return  true if {@link #readHead()} returns the next head without waiting for the client
+     * @throws  IOException If reading fails
+     */
+    public boolean hasHead() throws IOException {
+        while (true) {
+            while (end - start >= 2 && buffer[start] == '\r' && buffer[start + 1] == '\n') {
+                start += 2;
+            }
+            scanned = Math.max(scanned, start);
+            if (findHeadEnd() >= 0) {
+                return true;
+            }
+            int available = in.available();
+            if (available <= 0 || end - start == buffer.length) {
+                return false;
+            }
+            if (end == buffer.length) {
+                compact();
+            }
+            int read = in.read(buffer, end, Math.min(available, buffer.length - end));
+            if (read <= 0) {
+                return false;
+            }
+            end += read;
+        }
+    }
+
+    /**
+     * Checks the next bytes without consuming them, reads until enough of them are buffered.
+     *
+     * @param   prefix  the expected bytes, shorter than the limit
+     * @return  false if the next bytes differ or the stream ends before them
+     * @throws  IOException If reading fails, a timeout keeps the bytes read so far
+     */
+    public boolean startsWith(String prefix) throws IOException {
+        while (true) {
+            int available = end - start;
+            for (int i = 0; i < Math.min(available, prefix.length()); i++) {
+                if (buffer[start + i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            if (available >= prefix.length()) {
+                return true;
+            }
+            if (end == buffer.length) {
+                compact();
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                return false;
+            }
+            end += read;
+        }
+    }
+
+    // The index after the CRLFCRLF that ends the head, -1 if it was not read yet
+    private int findHeadEnd() {
+        for (int i = Math.max(scanned, start + 3); i < end; i++) {
+            if (buffer[i] == '\n' && buffer[i - 1] == '\r' && buffer[i - 2] == '\n' && buffer[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        // The last three bytes may start the blank line
+        scanned = Math.max(start, end - 3);
+        return -1;
+    }
+
+    // Moves the unread bytes to the front of the buffer
+    private void compact() {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        scanned -= start;
+        end -= start;
+        start = 0;
+    }
+
+    private boolean fill() throws IOException {
+        start = 0;
+        end = 0;
+        scanned = 0;
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        end = read;
+        return true;
+    }
+
+    /**
+     * @return  the number of bytes already read from the connection but not from this stream
+     */
+    public int buffered() {
+        return end - start;
+    }
+
+    /**
+     * Writes the buffered bytes, used before the connection is read by other means.
+     *
+     * @return  the number of bytes written
+     */
+    public int transferBuffered(OutputStream out) throws IOException {
+        int length = end - start;
+        if (length > 0) {
+            out.write(buffer, start, length);
+            start = end;
+            scanned = end;
+        }
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (start == end && !fill()) {
+            return -1;
+        }
+        return buffer[start++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (start == end) {
+            if (len >= buffer.length) {
+                // Large reads skip the buffer
+                return in.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int length = Math.min(len, end - start);
+        System.arraycopy(buffer, start, b, off, length);
+        start += length;
+        return length;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return end - start + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
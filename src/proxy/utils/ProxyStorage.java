@@ -2,24 +2,69 @@ package proxy.utils;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.net.URL;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ProxyStorage {
     private static ProxyStorage obj_instance;
     private static final Object obj_lock = new Object();
 
+    private final File configDir;
     private final File cacheDir;
-    private final File cacheIndex;
     private final ConcurrentHashMap<String, Object> writeLock;
-    private final File blockedIndex;
-    private ConcurrentHashMap<String, String> cacheMap;
-    private ConcurrentHashMap<String, String> blockedMap;
+    // Indexes are persisted as a snapshot plus an append-only journal
+    private final IndexJournal<CacheEntry> cacheIndex;
+    private final IndexJournal<String> blockedIndex;
+    private final ConcurrentHashMap<String, CacheEntry> cacheMap;
+    // Disk cache limits, eviction runs in the background once one of them is exceeded
+    private final long maxCacheBytes;
+    private final int maxCacheEntries;
+    private final AtomicLong cacheBytes = new AtomicLong();
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+    private final LongAdder cacheEvictions = new LongAdder();
+    private final ExecutorService cacheEvictor;
+    private final CacheFileHandles cacheHandles;
+    // Responses are written to the disk by a writer thread, the request threads never wait for it
+    private final CacheWriteBehind cacheWriteBehind;
+    // Decides which cacheable responses are written at all
+    private volatile CacheAdmission cacheAdmission;
+    private final LongAdder admittedResponses = new LongAdder();
+    private final LongAdder admittedBytes = new LongAdder();
+    private final LongAdder rejectedResponses = new LongAdder();
+    private final LongAdder rejectedBytes = new LongAdder();
+    // Requests that were served from the fetch of another request instead of the origin
+    private final LongAdder collapsedFetches = new LongAdder();
+    // Bodies that did not match their checksum when they were read
+    private final LongAdder corruptObjects = new LongAdder();
+    // Small popular cache objects are also kept in memory
+    private final HotObjectCache hotObjects;
+    // Held while an index entry is replaced or removed and while the memory tier is offered an object, so a replaced
+    // body cannot be admitted after its invalidation
+    private final Object hotObjectsLock = new Object();
+    private final ConcurrentHashMap<String, String> blockedMap;
+    // Rebuilt from blockedMap on every change, readers only see complete tries
+    private volatile DomainTrie blockedTrie;
+    // Large imported lists are kept off-heap and replaced as a whole
+    private final File importedBlocklistFile;
+    private volatile CompactDomainSet importedBlocklist;
 
     public static ProxyStorage getStorage() throws IOException {
         ProxyStorage obj = obj_instance;
@@ -38,7 +83,7 @@ public class ProxyStorage {
 
     private ProxyStorage() throws IOException {
         String homeDir = System.getProperty("user.home");
-        File configDir = new File(homeDir + File.separator + ".proxy");
+        configDir = new File(homeDir + File.separator + ".proxy");
         // Does the config dir exists?
         if (!configDir.exists()) {
             if (!configDir.mkdirs()) {
@@ -47,21 +92,22 @@ public class ProxyStorage {
         }
 
         // Initialize blocked hosts
-        blockedIndex = new File(configDir + File.separator + "blocked_index");
-        if (blockedIndex.exists()) {
-            // Read object back into the memory
-            try (FileInputStream index = new FileInputStream(blockedIndex);
-                ObjectInputStream blocked = new ObjectInputStream(index)) {
-                blockedMap = (ConcurrentHashMap<String, String>) blocked.readObject();
-            } catch (ClassNotFoundException e) {
-                // Try to delete broken blocked_index
-                if (!blockedIndex.delete()) {
-                    throw new IOException("Failed to delete the broken blocked_index");
+        blockedIndex = new IndexJournal<>("blocked_index", new File(configDir + File.separator + "blocked_index"));
+        blockedIndex.open();
+        blockedMap = blockedIndex.getMap();
+
+        // Initialize imported blocklist
+        importedBlocklistFile = new File(configDir + File.separator + "blocklist.bin");
+        importedBlocklist = CompactDomainSet.empty();
+        if (importedBlocklistFile.exists()) {
+            try {
+                importedBlocklist = CompactDomainSet.load(importedBlocklistFile);
+            } catch (IOException ex) {
+                // Try to delete broken blocklist
+                if (!importedBlocklistFile.delete()) {
+                    throw new IOException("Failed to delete the broken blocklist");
                 }
-                blockedMap = new ConcurrentHashMap<>();
             }
-        } else { // Blocked_index does not exist so create a new one
-            blockedMap = new ConcurrentHashMap<>();
         }
 
         // Initialize cache
@@ -74,50 +120,171 @@ public class ProxyStorage {
         } // No need to load files here to the memory
 
         // Initialize cache index
-        cacheIndex = new File(configDir + File.separator + "cache_index");
-        if (cacheIndex.exists()) {
-            try (FileInputStream index = new FileInputStream(cacheIndex);
-                ObjectInputStream map = new ObjectInputStream(index)) {
-                cacheMap = (ConcurrentHashMap<String, String>) map.readObject();
-            } catch (ClassNotFoundException e) {
-                // Try to remove broken
-                if (!cacheIndex.delete()) {
-                    throw new IOException("Failed to delete the broken cache_index");
+        cacheIndex = new IndexJournal<>("cache_index", new File(configDir + File.separator + "cache_index"));
+        if (!cacheIndex.open()) {
+            // Index was broken, the cache files cannot be found anymore so remove them
+            clearCacheDir();
+        }
+        cacheMap = cacheIndex.getMap();
+        migrateCacheIndex();
+        prepareCacheDir();
+        for (CacheEntry entry : cacheMap.values()) {
+            cacheBytes.addAndGet(entry.getSize());
+        }
+        maxCacheBytes = Long.getLong("proxy.diskCache.maxBytes", 1024L * 1024 * 1024);
+        maxCacheEntries = Integer.getInteger("proxy.diskCache.maxEntries", 100_000);
+        cacheEvictor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "disk-cache-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cacheHandles = new CacheFileHandles(Integer.getInteger("proxy.diskCache.openFiles", 256));
+        cacheWriteBehind = new CacheWriteBehind("disk-cache-writer", 16 * 1024,
+                Integer.getInteger("proxy.diskCache.writeBuffers", 512));
+        cacheAdmission = new FrequencyAdmission(maxCacheEntries,
+                Integer.getInteger("proxy.cache.admitAfter", 2),
+                Long.getLong("proxy.cache.maxObjectSize", Math.min(64L * 1024 * 1024, maxCacheBytes / 8)),
+                System.getProperty("proxy.cache.rejectTypes", "video/,audio/,multipart/,text/event-stream")
+                        .toLowerCase(Locale.ROOT).split("\\s*,\\s*"));
+
+        hotObjects = new HotObjectCache(
+                Long.getLong("proxy.memoryCache.maxBytes", 64L * 1024 * 1024),
+                Integer.getInteger("proxy.memoryCache.maxObjectSize", 256 * 1024));
+
+        writeLock = new ConcurrentHashMap<>();
+        blockedTrie = DomainTrie.build(blockedMap.keySet());
+        // The limits might have been lowered since the last run
+        scheduleEviction();
+    }
+
+    // Older indexes were keyed by the encoded host and path, without the query and the varied headers the entries
+    // cannot be mapped to their new keys so they are dropped, prepareCacheDir removes their files. Entries written
+    // before the headers moved into the index have the header in front of the body, they are dropped as well.
+    private void migrateCacheIndex() throws IOException {
+        for (Map.Entry<String, CacheEntry> entry : cacheIndex.getMap().entrySet()) {
+            String key = entry.getKey();
+            if (!CacheKey.isDigest(key)) {
+                cacheIndex.remove(key);
+            } else if (!entry.getValue().hasHeader()) {
+                cacheIndex.remove(key);
+                File cached = cacheFile(key, ".data");
+                if (cached.exists() && !cached.delete()) {
+                    throw new IOException("Failed to remove the outdated cache files!");
                 }
-                for (File file: Objects.requireNonNull(cacheDir.listFiles())) {
-                    if (!file.delete()) {
-                        throw new IOException("Failed to remove the broken cache files!");
-                    }
+            }
+        }
+    }
+
+    // Two hex levels of the digest, 256 directories per level keep every directory small even with millions of
+    // objects, the directories are created when the first object of a shard is written
+    private File cacheFile(String key, String suffix) {
+        return new File(cacheDir + File.separator + key.substring(0, 2) + File.separator + key.substring(2, 4)
+                + File.separator + key + suffix);
+    }
+
+    // Walks the cache tree without listing whole directories into memory
+    private void clearCacheDir() throws IOException {
+        Files.walkFileTree(cacheDir.toPath(), new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                if (!dir.equals(cacheDir.toPath())) {
+                    Files.delete(dir);
                 }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
 
-                cacheMap = new ConcurrentHashMap<>();
+    // Removes responses that were still being written when the proxy stopped and moves the objects of the older
+    // flat layout into their shards
+    private void prepareCacheDir() throws IOException {
+        Path root = cacheDir.toPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                } else if (file.getParent().equals(root)) {
+                    String key = name.endsWith(".data") ? name.substring(0, name.length() - 5) : name;
+                    if (CacheKey.isDigest(key) && cacheMap.containsKey(key)) {
+                        Path sharded = cacheFile(key, ".data").toPath();
+                        Files.createDirectories(sharded.getParent());
+                        Files.move(file, sharded, StandardCopyOption.REPLACE_EXISTING);
+                    } else {
+                        // Not reachable from the index anymore
+                        Files.delete(file);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
             }
-        } else {
-            cacheMap = new ConcurrentHashMap<>();
-        }
+        });
+    }
 
-        writeLock = new ConcurrentHashMap<>();
+    public File getConfigDir() {
+        return configDir;
+    }
+
+    /**
+     * Checks the requested hostname (Host header, SNI or CONNECT target) against the blocked domains.
+     * A domain also blocks all of its subdomains. No DNS lookup is made.
+     *
+     * @param   host    the requested hostname or IP address literal
+     * @return  true if the host is blocked
+     */
+    public boolean isBlocked(String host) {
+        return blockedTrie.matches(host) || importedBlocklist.matches(host);
     }
 
-    public boolean isBlocked(InetAddress ip) {
-        String hostname = ip.getHostName();
-        if (hostname.startsWith("www.")) { // Remove www. part since we do not store that
-            hostname = hostname.substring(4);
+    /**
+     * Replaces the imported blocklist with the domains of a hosts file or a plain domain list.
+     * The new list is built next to the current one and swapped in once it is complete.
+     *
+     * @param   source  the list to import
+     * @return  the number of imported domains
+     * @throws  IOException If the list cannot be read or the blocklist cannot be written
+     */
+    public int importBlocklist(File source) throws IOException {
+        synchronized (importedBlocklistFile) {
+            File tempFile = new File(importedBlocklistFile + ".tmp");
+            int count = CompactDomainSet.importList(source, tempFile);
+            CompactDomainSet imported = CompactDomainSet.load(tempFile);
+            Files.move(tempFile.toPath(), importedBlocklistFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            importedBlocklist = imported;
+            return count;
         }
-        return blockedMap.get(hostname) != null;
+    }
+
+    public void clearImportedBlocklist() throws IOException {
+        synchronized (importedBlocklistFile) {
+            importedBlocklist = CompactDomainSet.empty();
+            Files.deleteIfExists(importedBlocklistFile.toPath());
+        }
+    }
+
+    public int getImportedBlocklistSize() {
+        return importedBlocklist.size();
     }
 
     public void blockAddress(String address) throws IOException {
+        // Resolve only to validate the input and to show the address in the blocked hosts table
         InetAddress ip = InetAddress.getByName(address);
-        String hostname = ip.getHostName();
-        if (hostname.startsWith("www.")) {
-            hostname = hostname.substring(4);
-        }
-        String previous = blockedMap.putIfAbsent(hostname, ip.getHostAddress());
-        if (previous == null) {
-            try (FileOutputStream fileOut = new FileOutputStream(blockedIndex);
-                 ObjectOutputStream objectStream = new ObjectOutputStream(fileOut)) {
-                objectStream.writeObject(blockedMap);
+        String hostname = DomainTrie.normalize(address);
+        // Lock so concurrent changes cannot publish a trie built from an older key set
+        synchronized (blockedIndex) {
+            String previous = blockedIndex.putIfAbsent(hostname, ip.getHostAddress());
+            if (previous == null) {
+                blockedTrie = DomainTrie.build(blockedMap.keySet());
             }
         }
     }
@@ -126,55 +293,365 @@ public class ProxyStorage {
         return blockedMap.entrySet();
     }
 
-    public void unblockHosts(InetAddress[] ipArray) throws IOException {
-        for (InetAddress ip : ipArray) {
-            blockedMap.remove(ip.getHostName());
+    public void unblockHosts(String[] hosts) {
+        synchronized (blockedIndex) {
+            for (String host : hosts) {
+                blockedIndex.remove(host);
+            }
+            blockedTrie = DomainTrie.build(blockedMap.keySet());
         }
-        try (FileOutputStream fileOut = new FileOutputStream(blockedIndex);
-             ObjectOutputStream objectStream = new ObjectOutputStream(fileOut)) {
-            objectStream.writeObject(blockedMap);
+    }
+
+    /**
+     * Waits until all index changes are written to the disk, used before exiting.
+     *
+     * @throws  InterruptedException If interrupted while waiting
+     */
+    public void flushIndexes() throws InterruptedException {
+        blockedIndex.flush();
+        cacheIndex.flush();
+    }
+
+    /**
+     * Looks the key up in the cache index without opening the cache file.
+     *
+     * @param   key         the key of the requested object
+     * @return  the index entry of the cached response, null if it is not cached
+     */
+    public CacheEntry getCacheEntry(CacheKey key) {
+        cacheAdmission.recordRequest(key);
+        CacheEntry entry = cacheMap.get(key.getDigest());
+        if (entry != null) {
+            entry.touch();
         }
+        return entry;
     }
 
-    public Object[] isCached(URL fileName) throws IOException {
-        String encodedFileName = URLEncoder.encode(fileName.getHost() + fileName.getPath(), StandardCharsets.UTF_8);
-        String cacheDate = cacheMap.get(encodedFileName);
-        if (cacheDate != null) {
-            return new Object[] {new FileInputStream(cacheDir + File.separator + encodedFileName + ".data"), cacheDate};
+    /**
+     * Stores the new freshness of a cached response the origin has confirmed.
+     *
+     * @param   key         the key of the cached object
+     * @param   entry       the entry that was confirmed, nothing changes if it was replaced in the meantime
+     * @param   validity    the freshness given by the confirming response
+     * @return  the confirmed entry with the new freshness
+     */
+    public CacheEntry refreshCache(CacheKey key, CacheEntry entry, CacheEntry.Validity validity) {
+        CacheEntry refreshed = entry.revalidated(validity);
+        cacheIndex.replace(key.getDigest(), entry, refreshed);
+        return refreshed;
+    }
+
+    /**
+     * Opens the body of a cached response once the cache hit is confirmed. Handles of hot files are kept open
+     * between hits.
+     *
+     * @param   key         the key of the cached object
+     * @param   entry       the index entry the body is opened for
+     * @return  the handle of the cache file that must be closed after use, null if the object was evicted or
+     *          replaced by another response
+     * @throws  IOException If the cache file cannot be opened
+     */
+    public CacheFileHandles.Handle openCache(CacheKey key, CacheEntry entry) throws IOException {
+        String fileName = key.getDigest();
+        if (!entry.isSameResponse(cacheMap.get(fileName))) {
+            return null;
         }
-        return null;
+        CacheFileHandles.Handle handle;
+        try {
+            handle = cacheHandles.acquire(fileName, cacheFile(fileName, ".data"));
+        } catch (NoSuchFileException ex) {
+            // Evicted in the meantime
+            return null;
+        }
+        // The header of the entry must not be sent with the body of a newer response
+        if (handle.getChannel().size() != entry.getSize()) {
+            handle.close();
+            return null;
+        }
+        return handle;
     }
 
-    public File getCacheInput(URL fileName) {
-        String encodedFileName = URLEncoder.encode(fileName.getHost() + fileName.getPath(), StandardCharsets.UTF_8);
-        Object prev = writeLock.putIfAbsent(encodedFileName, new Object());
+    /**
+     * @param   key         the key of the response to cache
+     * @param   header      the status line and headers of the response as they are stored, not changed afterwards
+     * @return  the stream to write the body to, null if another thread is already writing it
+     * @throws  IOException If the cache file cannot be created
+     */
+    public InFlightResponse getCacheInput(CacheKey key, byte[] header) throws IOException {
+        String fileName = key.getDigest();
+        Object lock = new Object();
+        Object prev = writeLock.putIfAbsent(fileName, lock);
         // Another thread has the lock exit
         if (prev != null) {
             return null;
         }
-        return new File(cacheDir + File.separator + encodedFileName + ".data");
+        InFlightResponse response;
+        try {
+            // Written next to the cached copy and moved over it when complete, readers never see a partial file
+            File written = cacheFile(fileName, ".data.tmp");
+            Files.createDirectories(written.getParentFile().toPath());
+            response = new InFlightResponse(written, header);
+        } catch (IOException ex) {
+            writeLock.remove(fileName, lock);
+            throw ex;
+        }
+        // Publish the response so other requests for the key can attach to it
+        writeLock.replace(fileName, lock, response);
+        return response;
+    }
+
+    /**
+     * Starts caching a response through the write-behind queue if the admission policy accepts it. The response
+     * is moved into the cache once all of it is written, or dropped if the queue overflows, the disk fails or the
+     * body turns out to be over the size limit.
+     *
+     * @param   key             the key of the response to cache
+     * @param   response        the description of the response including its stored header
+     * @param   contentLength   the declared body length, -1 if it is not known
+     * @param   contentType     the media type of the response, null if it has none
+     * @return  the pipeline to write the body through, null if the response is not admitted or another thread is
+     *          already writing it
+     * @throws  IOException If the cache file cannot be created
+     */
+    public CacheWriteBehind.Pipeline getCacheWriter(CacheKey key, CacheEntry response, long contentLength,
+                                                    String contentType) throws IOException {
+        CacheAdmission admission = cacheAdmission;
+        if (!admission.admit(key, contentLength, contentType)) {
+            rejectedResponses.increment();
+            rejectedBytes.add(Math.max(0, contentLength));
+            return null;
+        }
+        InFlightResponse cacheFile = getCacheInput(key, response.getHeaderBytes());
+        if (cacheFile == null) {
+            return null;
+        }
+        admittedResponses.increment();
+        admittedBytes.add(Math.max(0, contentLength));
+        return cacheWriteBehind.open(cacheFile, admission.getMaxObjectSize(),
+                () -> saveCacheIndex(key, response), () -> removeBrokenCache(key));
+    }
+
+    /**
+     * Replaces the admission policy, used for the responses cached from then on.
+     *
+     * @param   admission   the new policy
+     */
+    public void setCacheAdmission(CacheAdmission admission) {
+        cacheAdmission = Objects.requireNonNull(admission);
     }
 
-    public void saveCacheIndex(URL fileName, String date) throws IOException {
-        String encodedFileName = URLEncoder.encode(fileName.getHost() + fileName.getPath(), StandardCharsets.UTF_8);
-        Object prev = writeLock.get(encodedFileName);
+    public String getAdmissionStats() {
+        return "Cache admission: " + admittedResponses.sum() + " responses admitted (" + admittedBytes.sum()
+                + " declared bytes), " + rejectedResponses.sum() + " rejected (" + rejectedBytes.sum()
+                + " declared bytes)";
+    }
+
+    /**
+     * Sends a response that another request is fetching and caching right now, instead of fetching it again.
+     *
+     * @param   key         the key of the requested object
+     * @param   target      where to send the response
+     * @return  false if there is no such response or it failed before any byte was sent
+     * @throws  IOException If sending fails, or the response failed after a part of it was sent
+     */
+    public boolean streamInFlight(CacheKey key, WritableByteChannel target) throws IOException {
+        Object writer = writeLock.get(key.getDigest());
+        if (!(writer instanceof InFlightResponse)) {
+            return false;
+        }
+        InFlightResponse response = (InFlightResponse) writer;
+        InFlightResponse.Attachment reader = response.attach();
+        if (reader == null || !response.streamTo(reader, target)) {
+            return false;
+        }
+        collapsedFetches.increment();
+        return true;
+    }
+
+    /**
+     * Moves a completely written response into the cache.
+     *
+     * @param   key         the key of the response
+     * @param   response    the description of the response, the size and checksum are taken from the written body
+     */
+    public void saveCacheIndex(CacheKey key, CacheEntry response) {
+        String fileName = key.getDigest();
+        Object prev = writeLock.get(fileName);
         // File not locked, possible wrong call exit
-        if (prev == null) {
+        if (!(prev instanceof InFlightResponse)) {
             return;
         }
-        cacheMap.put(encodedFileName, date);
-        // Lock cacheIndex file to prevent multiple threads from writing to it
-        synchronized (cacheIndex) {
-            try (FileOutputStream fileOut = new FileOutputStream(cacheIndex);
-                 ObjectOutputStream objectStream = new ObjectOutputStream(fileOut)) {
-                objectStream.writeObject(cacheMap);
+        InFlightResponse writer = (InFlightResponse) prev;
+        // Attached readers already have the file open, no new ones after this point
+        writer.closeForReaders();
+        File written = cacheFile(fileName, ".data.tmp");
+        long size = written.length();
+        try {
+            Files.move(written.toPath(), cacheFile(fileName, ".data").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            removeBrokenCache(key);
+            return;
+        }
+        CacheEntry previous;
+        synchronized (hotObjectsLock) {
+            previous = cacheIndex.put(fileName, response.stored(size, writer.getChecksum()));
+            hotObjects.invalidate(fileName);
+        }
+        cacheBytes.addAndGet(size - (previous == null ? 0 : previous.getSize()));
+        cacheHandles.invalidate(fileName);
+        writeLock.remove(fileName);
+        writer.finish(true);
+        scheduleEviction();
+    }
+
+    // Never blocks, at most one eviction run is queued at a time
+    private void scheduleEviction() {
+        if ((cacheBytes.get() > maxCacheBytes || cacheMap.size() > maxCacheEntries)
+                && evictionScheduled.compareAndSet(false, true)) {
+            cacheEvictor.execute(this::evictCache);
+        }
+    }
+
+    private static final class EvictionCandidate {
+        private final String key;
+        private final CacheEntry entry;
+        private final long rank;
+
+        private EvictionCandidate(String key, CacheEntry entry, long now) {
+            this.key = key;
+            this.entry = entry;
+            // Idle time scaled down by the popularity, the highest rank is evicted first
+            this.rank = (now - entry.getLastAccess()) / (1 + entry.getHits());
+        }
+    }
+
+    // Remove the lowest ranked entries until the cache is back under 90% of its limits
+    private void evictCache() {
+        evictionScheduled.set(false);
+        long targetBytes = maxCacheBytes - maxCacheBytes / 10;
+        int targetEntries = maxCacheEntries - maxCacheEntries / 10;
+
+        // Ranks are computed once, access times keep changing while sorting
+        long now = System.currentTimeMillis();
+        ArrayList<EvictionCandidate> candidates = new ArrayList<>(cacheMap.size());
+        for (Map.Entry<String, CacheEntry> entry : cacheMap.entrySet()) {
+            candidates.add(new EvictionCandidate(entry.getKey(), entry.getValue(), now));
+        }
+        candidates.sort((a, b) -> Long.compare(b.rank, a.rank));
+
+        for (EvictionCandidate candidate : candidates) {
+            if (cacheBytes.get() <= targetBytes && cacheMap.size() <= targetEntries) {
+                break;
+            }
+            if (deleteCache(candidate.key, candidate.entry)) {
+                cacheEvictions.increment();
+            }
+        }
+
+        for (CacheEntry entry : cacheMap.values()) {
+            entry.age();
+        }
+    }
+
+    // Removes an entry and its file, only if it is still the given entry and nobody is writing the object
+    private boolean deleteCache(String fileName, CacheEntry entry) {
+        // Lock the file like a writer does
+        Object lock = new Object();
+        if (writeLock.putIfAbsent(fileName, lock) != null) {
+            return false;
+        }
+        try {
+            // Only remove the given entry, not a newer copy stored in the meantime
+            synchronized (hotObjectsLock) {
+                if (!cacheIndex.remove(fileName, entry)) {
+                    return false;
+                }
+                hotObjects.invalidate(fileName);
+            }
+            cacheBytes.addAndGet(-entry.getSize());
+            cacheHandles.invalidate(fileName);
+            File cached = cacheFile(fileName, ".data");
+            if (cached.exists() && !cached.delete()) {
+                Logger.getLogger().addVerboseLog("Failed to delete the cache file " + cached);
+            }
+            return true;
+        } finally {
+            writeLock.remove(fileName, lock);
+        }
+    }
+
+    /**
+     * Drops a cached response whose body does not match its checksum.
+     *
+     * @param   key         the key of the cached object
+     * @param   entry       the index entry the body was read for
+     */
+    public void removeCorruptCache(CacheKey key, CacheEntry entry) {
+        if (deleteCache(key.getDigest(), entry)) {
+            corruptObjects.increment();
+        }
+    }
+
+    public String getCacheStats() {
+        return "Disk cache: " + cacheMap.size() + " entries, " + cacheBytes.get() + " bytes, "
+                + cacheEvictions.sum() + " evictions, " + cacheHandles.getOpenCount() + " open files, "
+                + collapsedFetches.sum() + " origin fetches saved by collapsed forwarding, "
+                + corruptObjects.sum() + " corrupt objects dropped";
+    }
+
+    /**
+     * @param   key         the key of the cached object
+     * @param   entry       the index entry the response is served for
+     * @return  a read only view of the cached response if it is in the memory tier for this entry, null otherwise
+     */
+    public ByteBuffer getHotObject(CacheKey key, CacheEntry entry) {
+        return hotObjects.get(key.getDigest(), entry);
+    }
+
+    /**
+     * Offers a cached response read from the disk to the memory tier.
+     *
+     * @param   key         the key of the cached object
+     * @param   entry       the index entry the response was read for, replaced responses are not admitted
+     * @param   object      the response in a direct buffer that is not changed afterwards
+     */
+    public void offerHotObject(CacheKey key, CacheEntry entry, ByteBuffer object) {
+        String fileName = key.getDigest();
+        synchronized (hotObjectsLock) {
+            if (entry.isSameResponse(cacheMap.get(fileName))) {
+                hotObjects.offer(fileName, entry, object);
             }
         }
-        writeLock.remove(encodedFileName);
     }
 
-    public void removeBrokenCache(URL fileName) {
-        String encodedFileName = URLEncoder.encode(fileName.getHost() + fileName.getPath(), StandardCharsets.UTF_8);
-        writeLock.remove(encodedFileName);
+    public int getHotObjectLimit() {
+        return hotObjects.getMaxObjectSize();
+    }
+
+    // The largest body the admission policy lets into the disk cache
+    public long getObjectSizeLimit() {
+        return cacheAdmission.getMaxObjectSize();
+    }
+
+    public String getWriteBehindStats() {
+        return cacheWriteBehind.getStats();
+    }
+
+    public String getHotObjectStats() {
+        return hotObjects.getStats();
+    }
+
+    public void removeBrokenCache(CacheKey key) {
+        String fileName = key.getDigest();
+        Object prev = writeLock.get(fileName);
+        if (prev instanceof InFlightResponse) {
+            ((InFlightResponse) prev).finish(false);
+        }
+        File written = cacheFile(fileName, ".data.tmp");
+        if (written.exists() && !written.delete()) {
+            Logger.getLogger().addVerboseLog("Failed to delete the broken cache file " + written);
+        }
+        writeLock.remove(fileName);
     }
 }
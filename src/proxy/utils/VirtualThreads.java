@@ -0,0 +1,75 @@
+package proxy.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access point for virtual threads.
+ * <p>
+ * The project is built against JDK 17 where virtual threads do not exist yet, so the JDK 21 factories are looked
+ * up reflectively. When they are missing every call falls back to one platform thread per task, which keeps the
+ * same "no queueing behind a fixed pool" behaviour at a higher memory cost.
+ */
+public final class VirtualThreads {
+    private static final Method newVirtualExecutor = findMethod(
+            "java.util.concurrent.Executors", "newVirtualThreadPerTaskExecutor");
+    private static final Method startVirtualThread = findMethod(
+            "java.lang.Thread", "startVirtualThread", Runnable.class);
+
+    private VirtualThreads() {
+    }
+
+    private static Method findMethod(String className, String methodName, Class<?>... parameters) {
+        try {
+            return Class.forName(className).getMethod(methodName, parameters);
+        } catch (ReflectiveOperationException ex) {
+            // Running on a JDK without virtual threads
+            return null;
+        }
+    }
+
+    /**
+     * @return  true if the running JDK can create virtual threads
+     */
+    public static boolean isSupported() {
+        return newVirtualExecutor != null && startVirtualThread != null;
+    }
+
+    /**
+     * Creates an executor that starts a new thread for each submitted task.
+     *
+     * @return  a virtual thread per task executor, or a cached platform thread pool if virtual threads are not supported
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        if (newVirtualExecutor != null) {
+            try {
+                return (ExecutorService) newVirtualExecutor.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException ignore) {
+                // Fall back to platform threads below
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Starts the task on a new thread.
+     *
+     * @param   task    the task to run
+     * @return  the started thread, virtual if supported
+     */
+    public static Thread start(Runnable task) {
+        if (startVirtualThread != null) {
+            try {
+                return (Thread) startVirtualThread.invoke(null, task);
+            } catch (IllegalAccessException | InvocationTargetException ignore) {
+                // Fall back to platform threads below
+            }
+        }
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}